@@ -0,0 +1,107 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Chooses the batch size of the cursors of a query shape (collection and projected fields) from the
+ * executions already finished, as the batch size of a cursor is fixed when it is opened.
+ *
+ * The first cursors of a shape use small batches, so the first rows arrive soon. The batch size doubles
+ * while the executions need more than one batch and spend more time waiting for batches than delivering
+ * the rows (a fast consumer), it halves when the results fit in a fraction of a batch, and it is capped so
+ * a batch holds at most TARGET_BATCH_BYTES according to the measured average document size.
+ */
+public final class BatchSizeController {
+
+    static final int MIN_BATCH_SIZE = 16;
+    static final int MAX_BATCH_SIZE = 100000;
+    static final long TARGET_BATCH_BYTES = 4L * 1024L * 1024L;
+
+    private static final int MAX_SHAPES = 1000;
+
+    private static final Map<String, Shape> shapes = new LinkedHashMap<String, Shape>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Shape> eldest) {
+            return size() > MAX_SHAPES;
+        }
+    };
+
+    private static final class Shape {
+
+        int batchSize = MIN_BATCH_SIZE;
+        double averageDocumentBytes;
+    }
+
+
+    // Suppress default constructor for noninstantiability
+    private BatchSizeController() {
+
+    }
+
+    public static synchronized int getBatchSize(final String shape) {
+
+        final Shape state = shapes.get(shape);
+        return (state == null) ? MIN_BATCH_SIZE : state.batchSize;
+    }
+
+    /**
+     * Records an execution of the shape: the documents returned, their average size (0 if unknown), the
+     * time spent waiting for the cursor and the time spent delivering the rows to the consumer. Returns
+     * the batch size of the next executions.
+     */
+    public static synchronized int record(final String shape, final int batchSize, final long documents,
+            final double averageDocumentBytes, final long fetchNanos, final long consumeNanos) {
+
+        Shape state = shapes.get(shape);
+        if (state == null) {
+            state = new Shape();
+            shapes.put(shape, state);
+        }
+
+        if (averageDocumentBytes > 0) {
+            state.averageDocumentBytes = (state.averageDocumentBytes > 0)
+                ? (state.averageDocumentBytes + averageDocumentBytes) / 2
+                : averageDocumentBytes;
+        }
+
+        int next = batchSize;
+        if (documents > batchSize && fetchNanos >= consumeNanos) {
+            next = (batchSize > MAX_BATCH_SIZE / 2) ? MAX_BATCH_SIZE : batchSize * 2;
+        } else if (documents < batchSize / 4) {
+            next = batchSize / 2;
+        }
+        if (state.averageDocumentBytes > 0) {
+            next = (int) Math.min(next, TARGET_BATCH_BYTES / state.averageDocumentBytes);
+        }
+        state.batchSize = Math.max(MIN_BATCH_SIZE, next);
+
+        return state.batchSize;
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+
+/**
+ * Bounds the memory a query takes in VDP: the elements of every array of a document, the size of a
+ * document (BSON bytes) and the size of all the documents returned by the query.
+ *
+ * Documents over the array or document limits are truncated, skipped or fail the query according to
+ * the policy. Truncated arrays keep their first elements and truncated documents lose their largest
+ * fields (null columns) until they fit. The result limit is the size of all the documents returned by
+ * the query, not of the documents held at a time: when it is reached the query fails with any policy, so
+ * a partial result is never returned as if it were complete.
+ *
+ * The size of a document is read as the query decodes it (see getCodec()), so documents are only encoded
+ * again when they have been truncated.
+ */
+public final class MemoryGuard {
+
+    private static final Logger logger = Logger.getLogger(MemoryGuard.class);
+
+    private static final String MONGODB_ID_FIELD = "_id";
+
+    public enum Policy {
+        TRUNCATE, SKIP, FAIL
+    }
+
+    private final int maxArrayElements;
+    private final long maxDocumentBytes;
+    private final long maxResultBytes;
+    private final Policy policy;
+    private final Codec<Document> codec;
+
+    private long resultBytes;
+    private long truncatedDocuments;
+    private long skippedDocuments;
+
+    // Last document decoded by the codec of the guard and its size in the query result
+    private Document decodedDocument;
+    private long decodedSize;
+
+
+    /**
+     * Limits of 0 are not checked.
+     */
+    public MemoryGuard(final int maxArrayElements, final long maxDocumentBytes, final long maxResultBytes,
+            final Policy policy, final Codec<Document> codec) {
+
+        this.maxArrayElements = maxArrayElements;
+        this.maxDocumentBytes = maxDocumentBytes;
+        this.maxResultBytes = maxResultBytes;
+        this.policy = policy;
+        this.codec = codec;
+    }
+
+    /**
+     * Codec that decodes the documents of the query as the codec of the guard does and records their size,
+     * to be used by the query whose documents are checked.
+     */
+    public Codec<Document> getCodec() {
+        return new SizeRecordingCodec();
+    }
+
+    /**
+     * Returns the document to return, truncated if needed, or null if it is skipped. Fails when the result
+     * limit is exceeded.
+     */
+    public Document check(final Document document) {
+
+        boolean truncated = false;
+        if (this.maxArrayElements > 0 && hasLongArrays(document)) {
+            if (!accept("it has arrays with more than " + this.maxArrayElements + " elements")) {
+                return null;
+            }
+            truncateArrays(document);
+            this.decodedDocument = null;
+            truncated = true;
+        }
+
+        if (this.maxDocumentBytes > 0 || this.maxResultBytes > 0) {
+            long size = getSize(document);
+            if (this.maxDocumentBytes > 0 && size > this.maxDocumentBytes) {
+                if (!accept("its size (" + size + " bytes) exceeds " + this.maxDocumentBytes + " bytes")) {
+                    return null;
+                }
+                size = truncateFields(document, size);
+                truncated = true;
+            }
+
+            this.resultBytes += size;
+            if (this.maxResultBytes > 0 && this.resultBytes > this.maxResultBytes) {
+                throw new IllegalStateException("The query result exceeds " + this.maxResultBytes + " bytes");
+            }
+        }
+
+        if (truncated) {
+            this.truncatedDocuments++;
+        }
+        return document;
+    }
+
+    public long getTruncatedDocuments() {
+        return this.truncatedDocuments;
+    }
+
+    public long getSkippedDocuments() {
+        return this.skippedDocuments;
+    }
+
+    /*
+     * Whether a document over a limit is returned truncated
+     */
+    private boolean accept(final String reason) {
+
+        if (this.policy == Policy.FAIL) {
+            throw new IllegalStateException("Document over the limits of the view: " + reason);
+        }
+        if (this.policy == Policy.SKIP) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Skipping document because " + reason);
+            }
+            this.skippedDocuments++;
+            return false;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Truncating document because " + reason);
+        }
+        return true;
+    }
+
+    private boolean hasLongArrays(final Object value) {
+
+        if (value instanceof Map) {
+            for (final Object field : ((Map<?, ?>) value).values()) {
+                if (hasLongArrays(field)) {
+                    return true;
+                }
+            }
+        } else if (value instanceof List) {
+            if (((List<?>) value).size() > this.maxArrayElements) {
+                return true;
+            }
+            for (final Object element : (List<?>) value) {
+                if (hasLongArrays(element)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object truncateArrays(final Object value) {
+
+        if (value instanceof Map) {
+            for (final Map.Entry<String, Object> field : ((Map<String, Object>) value).entrySet()) {
+                field.setValue(truncateArrays(field.getValue()));
+            }
+        } else if (value instanceof List) {
+            final List<Object> list = (List<Object>) value;
+            final List<Object> truncated = new ArrayList<Object>(list.subList(0, Math.min(list.size(), this.maxArrayElements)));
+            for (int i = 0; i < truncated.size(); i++) {
+                truncated.set(i, truncateArrays(truncated.get(i)));
+            }
+            return truncated;
+        }
+        return value;
+    }
+
+    /*
+     * Removes the largest fields, except _id, until the document fits. Returns its new size.
+     *
+     * Every field takes the same bytes in the document as in a document with only that field, but the
+     * length and the terminator of the document (5 bytes), so each field is encoded once.
+     */
+    private long truncateFields(final Document document, final long documentSize) {
+
+        final List<Map.Entry<String, Long>> fieldSizes = new ArrayList<Map.Entry<String, Long>>();
+        for (final Map.Entry<String, Object> field : document.entrySet()) {
+            if (!MONGODB_ID_FIELD.equals(field.getKey())) {
+                final long fieldSize = encode(new Document(field.getKey(), field.getValue())) - 5;
+                fieldSizes.add(new AbstractMap.SimpleEntry<String, Long>(field.getKey(), Long.valueOf(fieldSize)));
+            }
+        }
+        Collections.sort(fieldSizes, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(final Map.Entry<String, Long> field1, final Map.Entry<String, Long> field2) {
+                return field2.getValue().compareTo(field1.getValue());
+            }
+        });
+
+        long size = documentSize;
+        for (int i = 0; i < fieldSizes.size() && size > this.maxDocumentBytes; i++) {
+            document.remove(fieldSizes.get(i).getKey());
+            size -= fieldSizes.get(i).getValue().longValue();
+        }
+        return size;
+    }
+
+    /*
+     * The size recorded when the document was decoded, unless it has been modified since then
+     */
+    private long getSize(final Document document) {
+
+        if (document == this.decodedDocument) {
+            return this.decodedSize;
+        }
+        return encode(document);
+    }
+
+    private long encode(final Document document) {
+        return new RawBsonDocument(document, this.codec).getByteBuffer().remaining();
+    }
+
+    /*
+     * The documents of a query are decoded from a binary reader, whose position tells the bytes each one
+     * takes.
+     */
+    private final class SizeRecordingCodec implements Codec<Document> {
+
+        @Override
+        public Document decode(final BsonReader reader, final DecoderContext decoderContext) {
+
+            if (!(reader instanceof BsonBinaryReader)) {
+                return MemoryGuard.this.codec.decode(reader, decoderContext);
+            }
+
+            final int start = ((BsonBinaryReader) reader).getBsonInput().getPosition();
+            final Document document = MemoryGuard.this.codec.decode(reader, decoderContext);
+            MemoryGuard.this.decodedDocument = document;
+            MemoryGuard.this.decodedSize = ((BsonBinaryReader) reader).getBsonInput().getPosition() - start;
+            return document;
+        }
+
+        @Override
+        public void encode(final BsonWriter writer, final Document value, final EncoderContext encoderContext) {
+            MemoryGuard.this.codec.encode(writer, value, encoderContext);
+        }
+
+        @Override
+        public Class<Document> getEncoderClass() {
+            return Document.class;
+        }
+
+    }
+
+}
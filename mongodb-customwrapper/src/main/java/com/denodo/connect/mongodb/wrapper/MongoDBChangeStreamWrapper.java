@@ -0,0 +1,347 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper;
+
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_EQ;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_GE;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_GT;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_IN;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_ISNOTNULL;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_ISNULL;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_LE;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_LIKE;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_LT;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_NE;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.denodo.connect.mongodb.wrapper.util.QueryUtils;
+import com.denodo.connect.mongodb.wrapper.util.ResultUtils;
+import com.denodo.vdb.engine.customwrapper.AbstractCustomWrapper;
+import com.denodo.vdb.engine.customwrapper.CustomWrapperConfiguration;
+import com.denodo.vdb.engine.customwrapper.CustomWrapperException;
+import com.denodo.vdb.engine.customwrapper.CustomWrapperInputParameter;
+import com.denodo.vdb.engine.customwrapper.CustomWrapperResult;
+import com.denodo.vdb.engine.customwrapper.CustomWrapperSchemaParameter;
+import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition;
+import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperConditionHolder;
+import com.denodo.vdb.engine.customwrapper.expression.CustomWrapperFieldExpression;
+import com.denodo.vdb.engine.customwrapper.input.type.CustomWrapperInputParameterTypeFactory;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.changestream.FullDocument;
+
+
+/**
+ * Exposes the change stream of a collection as rows, one per change event, so consumers can read
+ * continuous deltas instead of reloading the collection. The columns are named after the fields of the
+ * change events:
+ *
+ *   resumeToken   -> token (JSON) to resume the stream after the event, with the Resume token parameter
+ *   operationType -> insert, update, replace, delete...
+ *   clusterTime   -> time of the operation
+ *   documentKey   -> _id of the changed document
+ *   fullDocument  -> the changed document, with the schema of the collection documents. Updates only have
+ *                    it with the Full document lookup parameter
+ *
+ * Conditions are applied at the MongoDB server, as a $match stage of the change stream. The query
+ * returns the events as they happen, until it is stopped or the maximum session length is reached.
+ *
+ * The data source parameters and the schema of the collection documents are those of MongoDBWrapper, but
+ * the collection queries and the insert, update and delete operations are not available.
+ */
+public class MongoDBChangeStreamWrapper extends AbstractCustomWrapper {
+
+    private static final Logger logger = Logger.getLogger(MongoDBChangeStreamWrapper.class);
+
+    private static final String RESUME_TOKEN = "Resume token";
+    private static final String FULL_DOCUMENT_LOOKUP = "Full document lookup";
+
+    private static final String RESUME_TOKEN_FIELD = "resumeToken";
+    private static final String OPERATION_TYPE_FIELD = "operationType";
+    private static final String CLUSTER_TIME_FIELD = "clusterTime";
+    private static final String DOCUMENT_KEY_FIELD = "documentKey";
+    private static final String FULL_DOCUMENT_FIELD = "fullDocument";
+    private static final String MONGODB_ID_FIELD = "_id";
+
+    // How long the server waits for new events before returning control, so stop requests are noticed
+    private static final long MAX_AWAIT_TIME_MILLIS = 1000L;
+
+    private static final Set<String> DOCUMENT_SCHEMA_PARAMETERS = new HashSet<String>(Arrays.asList(
+        MongoDBWrapper.COLLECTION, MongoDBWrapper.FIELDS, MongoDBWrapper.INTROSPECTION_QUERY,
+        MongoDBWrapper.INTROSPECTION_SAMPLE_SIZE, MongoDBWrapper.INTROSPECTION_STRATIFIED,
+        MongoDBWrapper.INTROSPECTION_MAX_DOCUMENTS, MongoDBWrapper.INTROSPECTION_MAX_TIME,
+        MongoDBWrapper.SERVER_SIDE_INTROSPECTION, MongoDBWrapper.INTROSPECTION_PARALLELISM,
+        MongoDBWrapper.SCHEMA_CACHE_TTL, MongoDBWrapper.SCHEMA_CACHE_REFRESH));
+
+    // Infers the schema of the collection documents. It is never used to query the collection
+    private final MongoDBWrapper documentWrapper = new MongoDBWrapper();
+
+    private volatile boolean stopRequested = false;
+    private volatile MongoCursor<?> activeCursor;
+
+
+    public MongoDBChangeStreamWrapper() {
+        super();
+    }
+
+    @Override
+    public CustomWrapperInputParameter[] getDataSourceInputParameters() {
+        return this.documentWrapper.getDataSourceInputParameters();
+    }
+
+    /*
+     * Only the parameters that define the schema of the collection documents apply to change streams
+     */
+    @Override
+    public CustomWrapperInputParameter[] getInputParameters() {
+
+        final List<CustomWrapperInputParameter> parameters = new ArrayList<CustomWrapperInputParameter>();
+        for (final CustomWrapperInputParameter parameter : this.documentWrapper.getInputParameters()) {
+            if (DOCUMENT_SCHEMA_PARAMETERS.contains(parameter.getName())) {
+                parameters.add(parameter);
+            }
+        }
+        parameters.add(new CustomWrapperInputParameter(
+            RESUME_TOKEN,
+            "resumeToken of the last event read. The stream starts after it instead of at the current time. Usually bound to an interpolation variable ",
+            false, true, CustomWrapperInputParameterTypeFactory.longStringType()));
+        parameters.add(new CustomWrapperInputParameter(
+            FULL_DOCUMENT_LOOKUP,
+            "Update events also return the current version of the whole document (fullDocument: updateLookup) ",
+            false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)));
+        parameters.add(new CustomWrapperInputParameter(
+            MongoDBWrapper.MAX_SESSION_LENGTH,
+            "Seconds the query returns events before finishing. By default it runs until it is stopped ",
+            false, true, CustomWrapperInputParameterTypeFactory.integerType()));
+
+        return parameters.toArray(new CustomWrapperInputParameter[parameters.size()]);
+    }
+
+    /*
+     * Events are returned in the order they happen, so 'order by' is not delegated
+     */
+    @Override
+    public CustomWrapperConfiguration getConfiguration() {
+
+        final CustomWrapperConfiguration configuration = super.getConfiguration();
+        configuration.setDelegateProjections(true);
+        configuration.setDelegateOrConditions(true);
+        configuration.setDelegateNotConditions(true);
+        configuration.setDelegateOrderBy(false);
+        configuration.setAllowedOperators(new String[] {
+                OPERATOR_EQ, OPERATOR_NE, OPERATOR_LT, OPERATOR_LE,
+                OPERATOR_GT, OPERATOR_GE, OPERATOR_LIKE, OPERATOR_ISNULL,
+                OPERATOR_ISNOTNULL, OPERATOR_IN
+        });
+
+        return configuration;
+    }
+
+    @Override
+    public CustomWrapperSchemaParameter[] getSchemaParameters(
+            final Map<String, String> inputValues) throws CustomWrapperException {
+
+        final CustomWrapperSchemaParameter[] documentSchema = this.documentWrapper.getSchemaParameters(inputValues);
+
+        CustomWrapperSchemaParameter id = new CustomWrapperSchemaParameter(MONGODB_ID_FIELD, Types.VARCHAR,
+            null, true /* searchable */, CustomWrapperSchemaParameter.ASC_AND_DESC_SORT,
+            false /* updateable */, true /* nullable */, false /* mandatory */);
+        for (final CustomWrapperSchemaParameter parameter : documentSchema) {
+            if (MONGODB_ID_FIELD.equals(parameter.getName())) {
+                id = parameter;
+            }
+        }
+
+        return new CustomWrapperSchemaParameter[] {
+            new CustomWrapperSchemaParameter(RESUME_TOKEN_FIELD, Types.VARCHAR,
+                null, false /* searchable */, CustomWrapperSchemaParameter.ASC_AND_DESC_SORT,
+                false /* updateable */, false /* nullable */, false /* mandatory */),
+            new CustomWrapperSchemaParameter(OPERATION_TYPE_FIELD, Types.VARCHAR,
+                null, true /* searchable */, CustomWrapperSchemaParameter.ASC_AND_DESC_SORT,
+                false /* updateable */, false /* nullable */, false /* mandatory */),
+            new CustomWrapperSchemaParameter(CLUSTER_TIME_FIELD, Types.TIMESTAMP,
+                null, false /* searchable */, CustomWrapperSchemaParameter.ASC_AND_DESC_SORT,
+                false /* updateable */, true /* nullable */, false /* mandatory */),
+            new CustomWrapperSchemaParameter(DOCUMENT_KEY_FIELD, Types.STRUCT,
+                new CustomWrapperSchemaParameter[] { id }, true /* searchable */, CustomWrapperSchemaParameter.ASC_AND_DESC_SORT,
+                false /* updateable */, true /* nullable */, false /* mandatory */),
+            new CustomWrapperSchemaParameter(FULL_DOCUMENT_FIELD, Types.STRUCT,
+                documentSchema, true /* searchable */, CustomWrapperSchemaParameter.ASC_AND_DESC_SORT,
+                false /* updateable */, true /* nullable */, false /* mandatory */)
+        };
+    }
+
+    @Override
+    public void run(final CustomWrapperConditionHolder condition,
+            final List<CustomWrapperFieldExpression> projectedFields,
+            final CustomWrapperResult result, final Map<String, String> inputValues)
+            throws CustomWrapperException {
+
+        try {
+
+            if (logger.isTraceEnabled()) {
+                logger.trace("Executing run()");
+            }
+
+            final CustomWrapperSchemaParameter[] schema = result.getSchema();
+            final MongoDBClient client = MongoDBWrapper.connect(inputValues, Boolean.FALSE);
+
+            final ChangeStreamIterable<Document> changeStream = client.getCollection().watch(buildPipeline(client, condition, schema))
+                .maxAwaitTime(MAX_AWAIT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+            if (Boolean.parseBoolean(inputValues.get(FULL_DOCUMENT_LOOKUP))) {
+                changeStream.fullDocument(FullDocument.UPDATE_LOOKUP);
+            }
+            final String resumeToken = StringUtils.trimToNull(inputValues.get(RESUME_TOKEN));
+            if (resumeToken != null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Resuming MongoDB change stream after: '" + resumeToken + "'");
+                }
+                getCustomWrapperPlan().addPlanEntry("MongoDB resume token", resumeToken);
+                changeStream.resumeAfter(BsonDocument.parse(resumeToken));
+            }
+
+            final String maxSessionLength = StringUtils.trimToNull(inputValues.get(MongoDBWrapper.MAX_SESSION_LENGTH));
+            final long deadline = (maxSessionLength != null)
+                ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Long.parseLong(maxSessionLength))
+                : Long.MAX_VALUE;
+
+            // The raw events keep the types of the document fields, as the collection documents do
+            final MongoCursor<Document> cursor = changeStream.withDocumentClass(Document.class).iterator();
+            setActiveCursor(cursor);
+            try {
+                final List<Object> row = new ArrayList<Object>();
+                while (!this.stopRequested && System.currentTimeMillis() < deadline) {
+
+                    final Document event = cursor.tryNext();
+                    if (event == null) {
+                        continue;
+                    }
+
+                    event.put(RESUME_TOKEN_FIELD, ((Document) event.get(MONGODB_ID_FIELD)).toJson());
+                    for (final CustomWrapperFieldExpression field : projectedFields) {
+                        row.add(ResultUtils.buildResultColumnValue(event, field.getName(), schema));
+                    }
+
+                    result.addRow(row.toArray(), projectedFields);
+                    row.clear();
+                }
+            } finally {
+                setActiveCursor(null);
+                cursor.close();
+            }
+
+            if (logger.isTraceEnabled()) {
+                logger.trace("Finished run(): OK");
+            }
+
+        } catch (final Exception e) {
+            if (this.stopRequested) {
+                // stop() closes the cursor, interrupting the reading
+                logger.debug("Stop has been requested: " + e.getMessage());
+                return;
+            }
+            final String errorMsg = "MongoDB wrapper error. " + e.getMessage();
+            logger.error(errorMsg, e);
+            if (logger.isTraceEnabled()) {
+                logger.trace("Finished run(): EXCEPTION: " + e.getMessage());
+            }
+            throw new CustomWrapperException(errorMsg, e);
+        }
+    }
+
+    /*
+     * The columns have the names of the fields of the change events, so the conditions are translated as
+     * in the queries over the collection. The resume token and the cluster time have a different type in
+     * the events.
+     */
+    private List<Bson> buildPipeline(final MongoDBClient client, final CustomWrapperConditionHolder condition,
+            final CustomWrapperSchemaParameter[] schema) {
+
+        final List<Bson> pipeline = new ArrayList<Bson>();
+        final CustomWrapperCondition complexCondition = condition.getComplexCondition();
+        if (complexCondition == null) {
+            return pipeline;
+        }
+
+        final Set<String> fields = QueryUtils.getReferencedFields(complexCondition);
+        if (fields.contains(RESUME_TOKEN_FIELD) || fields.contains(CLUSTER_TIME_FIELD)) {
+            throw new IllegalArgumentException("Conditions over " + RESUME_TOKEN_FIELD + " or " + CLUSTER_TIME_FIELD + " are not supported");
+        }
+
+        final Bson match = Aggregates.match(QueryUtils.buildQuery(schema, complexCondition));
+        final String matchStringRep = match.toBsonDocument(null, client.getMongoClient().getMongoClientOptions().getCodecRegistry()).toString();
+        if (logger.isDebugEnabled()) {
+            logger.debug("VDP query is: '" + complexCondition + "' resulting in MongoDB change stream stage: '" + matchStringRep + "'");
+        }
+        getCustomWrapperPlan().addPlanEntry("MongoDB change stream $match", matchStringRep);
+        pipeline.add(match);
+
+        return pipeline;
+    }
+
+    /*
+     * Registers the cursor being read by run(), so stop() can close it while run() waits for new events
+     */
+    private void setActiveCursor(final MongoCursor<?> cursor) {
+
+        this.activeCursor = cursor;
+        if (cursor != null && this.stopRequested) {
+            closeCursor(cursor);
+        }
+    }
+
+    @Override
+    public boolean stop() {
+
+        this.stopRequested = true;
+        final MongoCursor<?> cursor = this.activeCursor;
+        if (cursor != null) {
+            closeCursor(cursor);
+        }
+        return true;
+    }
+
+    private static void closeCursor(final MongoCursor<?> cursor) {
+
+        try {
+            cursor.close();
+        } catch (final RuntimeException e) {
+            logger.debug("Error closing the change stream of a stopped query: " + e.getMessage());
+        }
+    }
+
+}
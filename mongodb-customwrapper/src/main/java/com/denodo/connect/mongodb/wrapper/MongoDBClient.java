@@ -22,33 +22,83 @@
 package com.denodo.connect.mongodb.wrapper;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 
 import com.denodo.util.configuration.ConfigurationParametersManager;
 import com.denodo.util.denodoplatform.DenodoPlatformUtil;
+import com.mongodb.CursorType;
+import com.mongodb.Function;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.util.JSONParseException;
 import org.apache.log4j.Logger;
 import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
 
 public class MongoDBClient {
 
     private static final Logger logger = Logger.getLogger(MongoDBConnectionLocator.class);
 
+    private static final String MONGODB_ID_FIELD = "_id";
+    // Random starting points of the runs of documents read from each stratum of a stratified sample
+    private static final int SEEK_POINTS_PER_STRATUM = 4;
+    // Collections whose text index is kept, and for how long, so it is not listed by every query
+    private static final int MAX_TEXT_INDEXES = 1000;
+    private static final long TEXT_INDEX_TTL_MILLIS = 60000L;
+
+    // Fields of the text index and time they were read, by hosts and namespace of the collection
+    private static final Map<String, Object[]> textIndexes = new LinkedHashMap<String, Object[]>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Object[]> eldest) {
+            return size() > MAX_TEXT_INDEXES;
+        }
+    };
 
     private MongoClient mongoClient;
 
     private MongoCollection<Document> collection;
 
+    private String textIndexKey;
+
+    // Maximum time the server spends processing a query, 0 for no limit
+    private long maxTimeMillis;
+
+    // Documents of each batch of the query cursors, 0 for the server default
+    private int batchSize;
+
+    // Whether the aggregations can write temporary files when their stages exceed the memory limit
+    private boolean allowDiskUse;
+
     public MongoDBClient(String host, Integer port, String user, String password,
                          String dbName, String collectionName, String connectionString,
                          boolean ssl, boolean test) throws Exception {
@@ -100,6 +150,7 @@ public MongoDBClient(String host, Integer port, String user, String password,
         MongoDatabase db = getMongoClient().getDatabase(databaseName);
 
         this.collection = db.getCollection(collectionName);
+        this.textIndexKey = rawURI.getHosts() + "/" + databaseName + "." + collectionName;
         
     }
 
@@ -130,10 +181,34 @@ public MongoCollection<Document> getCollection() {
         return this.collection;
     }
 
-    public  FindIterable<Document>  query(Bson query, Bson orderBy, Bson projection) {
+    public void setMaxTime(long maxTimeMillis) {
+        this.maxTimeMillis = maxTimeMillis;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setAllowDiskUse(boolean allowDiskUse) {
+        this.allowDiskUse = allowDiskUse;
+    }
+
+    /*
+     * The documents returned by the queries are decoded with the codec instead of the one of the collection
+     */
+    public void setDocumentCodec(Codec<Document> codec) {
+        this.collection = this.collection.withCodecRegistry(
+            CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(codec), this.collection.getCodecRegistry()));
+    }
+
+    public  FindIterable<Document>  query(Bson query, Bson orderBy, Bson projection, Collation collation) {
 
         // An empty (or null) query document ({}) selects all documents in the collection.
-        FindIterable<Document> cursor = this.collection.find(query);
+        FindIterable<Document> cursor = this.collection.find(query).maxTime(this.maxTimeMillis, TimeUnit.MILLISECONDS)
+            .batchSize(this.batchSize);
+        if (collation != null) {
+            cursor.collation(collation);
+        }
         if (orderBy != null) {
             cursor.sort(orderBy);
         }
@@ -144,22 +219,424 @@ public  FindIterable<Document>  query(Bson query, Bson orderBy, Bson projection)
         return cursor;
     }
 
+    /*
+     * Tailable cursor over a capped collection: it returns the documents matching the query in insertion order
+     * and then waits for new ones. Every getMore waits at most the await time for new documents, so tryNext()
+     * returns null in the meantime instead of blocking.
+     */
+    public FindIterable<Document> tail(Bson query, Bson projection, Collation collation, long awaitTimeMillis) {
+
+        // The max time would also limit the time waiting for new documents
+        return query(query, null, projection, collation)
+            .maxTime(0L, TimeUnit.MILLISECONDS)
+            .cursorType(CursorType.TailableAwait)
+            .maxAwaitTime(awaitTimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * The documents matching the query sorted by _id, resuming the query from the last document read up to
+     * maxResumes times when the cursor or the connection fails.
+     */
+    public ResumableCursor scan(Bson query, Bson projection, Collation collation, int maxResumes) {
+        return new ResumableCursor(this, query, projection, collation, maxResumes);
+    }
+
+    /*
+     * Reads a page (starting at 1) of the documents matching the query, sorted by a unique key. The page starts
+     * after the last key of the nearest previous page already read ($gt), so only the pages in between are
+     * skipped, and the last key of every complete page read is kept for the pages that follow it.
+     */
+    public MongoIterable<Document> query(Bson query, Bson projection, Collation collation, final String keyField,
+            final int pageSize, final int page) {
+
+        final String shape = this.collection.getNamespace().getFullName()
+            + '|' + query.toBsonDocument(null, this.collection.getCodecRegistry()).toJson()
+            + '|' + (collation != null ? collation.asDocument().toJson() : "")
+            + '|' + keyField + '|' + pageSize;
+
+        final Map.Entry<Integer, Object> boundary = PageBoundaryCache.get(shape, page);
+        final int skippedPages = (boundary != null) ? page - boundary.getKey().intValue() - 1 : page - 1;
+        final Bson pageQuery = (boundary != null) ? Filters.and(query, Filters.gt(keyField, boundary.getValue())) : query;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Reading page " + page + (boundary != null ? " after the key of page " + boundary.getKey() : "")
+                + ", skipping " + skippedPages + " pages");
+        }
+
+        // The key of the documents is always retrieved, to remember the boundary of the page
+        final FindIterable<Document> cursor = query(pageQuery, Sorts.ascending(keyField),
+            (projection != null) ? Projections.fields(projection, Projections.include(keyField)) : null, collation);
+        cursor.skip(Math.multiplyExact(skippedPages, pageSize)).limit(pageSize);
+
+        return cursor.map(new Function<Document, Document>() {
+
+            private int read;
+
+            @Override
+            public Document apply(final Document document) {
+                if (++this.read == pageSize) {
+                    PageBoundaryCache.put(shape, page, document.get(keyField));
+                }
+                return document;
+            }
+        });
+    }
+
+    /*
+     * Fields of the text index of the collection, which has one at most, or an empty set if it has none.
+     * The fields of a text index are the keys of its weights, "$**" for a wildcard text index.
+     *
+     * The indexes are listed again when the ones read are older than TEXT_INDEX_TTL_MILLIS, so a text index
+     * created or dropped is noticed after that time.
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> getTextIndexFields() {
+
+        synchronized (textIndexes) {
+            final Object[] textIndex = textIndexes.get(this.textIndexKey);
+            if (textIndex != null && System.currentTimeMillis() - ((Long) textIndex[1]).longValue() < TEXT_INDEX_TTL_MILLIS) {
+                return (Set<String>) textIndex[0];
+            }
+        }
+
+        Set<String> fields = Collections.emptySet();
+        for (final Document index : this.collection.listIndexes()) {
+            if (index.get("key", Document.class).containsValue("text")) {
+                fields = Collections.unmodifiableSet(index.get("weights", Document.class).keySet());
+                break;
+            }
+        }
+
+        synchronized (textIndexes) {
+            textIndexes.put(this.textIndexKey, new Object[] { fields, Long.valueOf(System.currentTimeMillis()) });
+        }
+        return fields;
+    }
+
+    /*
+     * Number of documents matching the query. When estimated, the query must select all documents and the
+     * count is read from the collection metadata instead of counting the documents, which can be inaccurate
+     * on sharded clusters (orphaned documents) or after an unclean shutdown.
+     */
+    public long count(Bson query, Collation collation, boolean estimated) {
+
+        if (estimated) {
+            return this.collection.estimatedDocumentCount(
+                new EstimatedDocumentCountOptions().maxTime(this.maxTimeMillis, TimeUnit.MILLISECONDS));
+        }
+
+        final CountOptions options = new CountOptions().maxTime(this.maxTimeMillis, TimeUnit.MILLISECONDS);
+        if (collation != null) {
+            options.collation(collation);
+        }
+        return this.collection.countDocuments(query, options);
+    }
+
     public FindIterable<Document> query(String jsonQuery) {
+        return this.collection.find(parseQuery(jsonQuery));
+    }
+
+    public FindIterable<Document> query(String jsonQuery, Integer maxDocuments) {
+
+        final FindIterable<Document> cursor = query(jsonQuery);
+        if (maxDocuments != null) {
+            cursor.limit(maxDocuments.intValue());
+        }
+
+        return cursor;
+    }
+
+    /*
+     * Documents of a view defined by aggregation stages over the collection, for introspection. The sample
+     * is taken from the documents matching the query before the view stages, so that $sample can still use
+     * a random cursor, while the maximum number of documents applies to the documents of the view.
+     */
+    public MongoIterable<Document> query(String jsonQuery, List<Bson> viewStages, Integer sampleSize,
+            Integer maxDocuments) {
+
+        final List<Bson> pipeline = new ArrayList<Bson>();
+        final Document query = parseQuery(jsonQuery);
+        if (!query.isEmpty()) {
+            pipeline.add(Aggregates.match(query));
+        }
+        if (sampleSize != null) {
+            pipeline.add(Aggregates.sample(sampleSize.intValue()));
+        }
+        pipeline.addAll(viewStages);
+        if (maxDocuments != null) {
+            pipeline.add(Aggregates.limit(maxDocuments.intValue()));
+        }
+
+        return aggregate(pipeline);
+    }
+
+    /*
+     * Documents of a view defined by aggregation stages over the collection. The query is the first stage,
+     * so it can use the indexes of the collection, and the view query filters the documents produced by
+     * the view stages.
+     */
+    public AggregateIterable<Document> query(Bson query, List<Bson> viewStages, Bson viewQuery, Bson orderBy,
+            Bson projection, Collation collation) {
+
+        final List<Bson> pipeline = buildViewPipeline(query, viewStages, viewQuery);
+        if (orderBy != null) {
+            pipeline.add(Aggregates.sort(orderBy));
+        }
+        if (projection != null) {
+            pipeline.add(Aggregates.project(projection));
+        }
+
+        final AggregateIterable<Document> cursor = aggregate(pipeline).maxTime(this.maxTimeMillis, TimeUnit.MILLISECONDS)
+            .batchSize(this.batchSize);
+        if (collation != null) {
+            cursor.collation(collation);
+        }
+
+        return cursor;
+    }
+
+    /*
+     * Distinct combinations of values of the fields in the documents of the view, as documents with those
+     * fields. This is a $group instead of the distinct command, which considers each element of an array
+     * as a value, ignores documents without the field and returns all the values in a single document
+     * (16MB at most). A $group has the semantics of SQL DISTINCT and can spill to disk, see setAllowDiskUse().
+     */
+    public AggregateIterable<Document> distinct(Bson query, List<Bson> viewStages, Bson viewQuery,
+            List<String> fields, Bson orderBy, Collation collation) {
+
+        final List<Bson> pipeline = buildViewPipeline(query, viewStages, viewQuery);
+        pipeline.add(Aggregates.group(buildDistinctGroupId(fields)));
+        pipeline.add(Aggregates.replaceRoot("$_id"));
+        if (orderBy != null) {
+            pipeline.add(Aggregates.sort(orderBy));
+        }
+
+        final AggregateIterable<Document> cursor = aggregate(pipeline).maxTime(this.maxTimeMillis, TimeUnit.MILLISECONDS)
+            .batchSize(this.batchSize);
+        if (collation != null) {
+            cursor.collation(collation);
+        }
+
+        return cursor;
+    }
+
+    /*
+     * A $group puts the documents without a field and the documents where it is null in different groups,
+     * while both are NULL for VDP, so the missing values are replaced with null.
+     */
+    static Document buildDistinctGroupId(List<String> fields) {
+
+        final Document groupId = new Document();
+        for (final String field : fields) {
+            groupId.append(field, new Document("$ifNull", Arrays.asList("$" + field, null)));
+        }
+
+        return groupId;
+    }
+
+    /*
+     * An empty query is not added, as the view stages may start with a $text search, which must be the
+     * first stage.
+     */
+    private List<Bson> buildViewPipeline(Bson query, List<Bson> viewStages, Bson viewQuery) {
+
+        final List<Bson> pipeline = new ArrayList<Bson>();
+        if (!query.toBsonDocument(Document.class, this.collection.getCodecRegistry()).isEmpty()) {
+            pipeline.add(Aggregates.match(query));
+        }
+        pipeline.addAll(viewStages);
+        if (viewQuery != null) {
+            pipeline.add(Aggregates.match(viewQuery));
+        }
+
+        return pipeline;
+    }
+
+    /*
+     * Pseudo-randomly selects the specified number of documents from the ones matching the query. MongoDB
+     * only uses a random cursor, instead of scanning and sorting every matching document, when $sample is
+     * the first stage of the pipeline and the sample size is less than 5% of the collection. So the $match
+     * stage is only added when the query selects some documents.
+     */
+    public MongoIterable<Document> sample(String jsonQuery, int sampleSize) {
+
+        final List<Bson> pipeline = new ArrayList<Bson>();
+        final Document query = parseQuery(jsonQuery);
+        if (!query.isEmpty()) {
+            pipeline.add(Aggregates.match(query));
+        }
+        pipeline.add(Aggregates.sample(sampleSize));
+
+        return aggregate(pipeline);
+    }
+
+    /*
+     * Splits the _id range of the documents matching the query into the specified number of strata and
+     * reads its share of the sample size from every stratum, in short runs of consecutive documents
+     * starting at random _id values (seek points) of the stratum. Every run is an _id index seek limited
+     * to the documents of the run, so the number of documents read is bounded by the sample size (plus
+     * the documents skipped by the query), whatever the size of the collection. Runs may overlap, which
+     * only repeats documents of the sample.
+     *
+     * Strata can only be computed when _id values are ObjectIds (split by creation time) or numbers.
+     * For any other _id type this falls back to a single $sample.
+     */
+    public List<MongoIterable<Document>> stratifiedSample(String jsonQuery, int sampleSize, int strata) {
+
+        final Document query = parseQuery(jsonQuery);
+        final List<Object> bounds = findIdBounds(query, strata);
+        if (bounds == null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Stratified sampling is not possible over the _id values of the collection. "
+                    + "Using random sampling instead");
+            }
+            return Collections.<MongoIterable<Document>>singletonList(sample(jsonQuery, sampleSize));
+        }
+
+        final int stratumSize = Math.max(1, sampleSize / (bounds.size() - 1));
+        final int seekPoints = Math.min(stratumSize, SEEK_POINTS_PER_STRATUM);
+        final int runSize = Math.max(1, stratumSize / seekPoints);
+        final Random random = new Random();
+        final List<MongoIterable<Document>> cursors = new ArrayList<MongoIterable<Document>>();
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            final Bson range = buildIdRange(bounds, i);
+            for (int j = 0; j < seekPoints; j++) {
+                final Object seekPoint = randomId(bounds.get(i), bounds.get(i + 1), random);
+                cursors.add(this.collection.find(Filters.and(query, range, Filters.gte(MONGODB_ID_FIELD, seekPoint)))
+                    .sort(Sorts.ascending(MONGODB_ID_FIELD)).limit(runSize));
+            }
+        }
+
+        return cursors;
+    }
+
+    /*
+     * Splits the documents matching the query into the specified number of disjoint _id ranges, so they
+     * can be read concurrently. When _id values are neither ObjectIds nor numbers the range cannot be
+     * split and a single cursor over the whole query is returned.
+     */
+    public List<FindIterable<Document>> partition(String jsonQuery, int partitions) {
+
+        final Document query = parseQuery(jsonQuery);
+        final List<Object> bounds = findIdBounds(query, partitions);
+        if (bounds == null) {
+            return Collections.singletonList(this.collection.find(query));
+        }
+
+        final List<FindIterable<Document>> cursors = new ArrayList<FindIterable<Document>>();
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            cursors.add(this.collection.find(Filters.and(query, buildIdRange(bounds, i))));
+        }
+
+        return cursors;
+    }
+
+    /*
+     * Bounds of the disjoint _id ranges that cover the documents matching the query, or null when the
+     * _id values are neither ObjectIds nor numbers.
+     */
+    private List<Object> findIdBounds(Document query, int ranges) {
+
+        final Object minId = findBoundaryId(query, 1);
+        final Object maxId = findBoundaryId(query, -1);
+
+        if (ranges > 1 && minId instanceof ObjectId && maxId instanceof ObjectId) {
+            return splitObjectIdRange((ObjectId) minId, (ObjectId) maxId, ranges);
+        } else if (ranges > 1 && minId instanceof Number && maxId instanceof Number) {
+            return splitNumericRange((Number) minId, (Number) maxId, ranges);
+        }
+        return null;
+    }
+
+    /*
+     * The i-th range of the bounds. The last one includes its upper bound, the maximum _id.
+     */
+    private static Bson buildIdRange(List<Object> bounds, int i) {
+
+        final boolean last = (i == bounds.size() - 2);
+        return Filters.and(Filters.gte(MONGODB_ID_FIELD, bounds.get(i)),
+            last ? Filters.lte(MONGODB_ID_FIELD, bounds.get(i + 1)) : Filters.lt(MONGODB_ID_FIELD, bounds.get(i + 1)));
+    }
+
+    /*
+     * A random _id between the bounds of a range, which are both ObjectIds or both numbers.
+     */
+    private static Object randomId(Object lower, Object upper, Random random) {
+
+        if (lower instanceof ObjectId) {
+            final long start = ((ObjectId) lower).getTimestamp() & 0xFFFFFFFFL;
+            final long end = ((ObjectId) upper).getTimestamp() & 0xFFFFFFFFL;
+            final long ts = start + (long) (random.nextDouble() * (end - start));
+            return new ObjectId(String.format("%08x0000000000000000", Long.valueOf(ts)));
+        }
+
+        final double start = ((Number) lower).doubleValue();
+        final double end = ((Number) upper).doubleValue();
+        return Double.valueOf(start + random.nextDouble() * (end - start));
+    }
+
+    private Object findBoundaryId(Document query, int direction) {
+
+        final Bson sort = (direction > 0) ? Sorts.ascending(MONGODB_ID_FIELD) : Sorts.descending(MONGODB_ID_FIELD);
+        final Document document = this.collection.find(query).sort(sort)
+            .projection(Projections.include(MONGODB_ID_FIELD)).limit(1).first();
+
+        return (document == null) ? null : document.get(MONGODB_ID_FIELD);
+    }
+
+    /*
+     * ObjectIds start with a 4-byte creation timestamp, so an ObjectId whose remaining bytes are all
+     * zero is the lowest possible id for a given second.
+     */
+    private static List<Object> splitObjectIdRange(ObjectId min, ObjectId max, int strata) {
+
+        final long start = min.getTimestamp() & 0xFFFFFFFFL;
+        final long end = max.getTimestamp() & 0xFFFFFFFFL;
+        final long step = Math.max(1L, (end - start) / strata);
+
+        final List<Object> bounds = new ArrayList<Object>();
+        bounds.add(min);
+        for (long ts = start + step; ts <= end && bounds.size() < strata; ts += step) {
+            bounds.add(new ObjectId(String.format("%08x0000000000000000", Long.valueOf(ts))));
+        }
+        bounds.add(max);
+
+        return bounds;
+    }
+
+    private static List<Object> splitNumericRange(Number min, Number max, int strata) {
+
+        final double start = min.doubleValue();
+        final double end = max.doubleValue();
+        final double step = (end - start) / strata;
+
+        final List<Object> bounds = new ArrayList<Object>();
+        bounds.add(min);
+        for (int i = 1; i < strata && step > 0; i++) {
+            bounds.add(Double.valueOf(start + i * step));
+        }
+        bounds.add(max);
+
+        return bounds;
+    }
+
+    public AggregateIterable<Document> aggregate(List<Bson> pipeline) {
+        return this.collection.aggregate(pipeline).allowDiskUse(Boolean.valueOf(this.allowDiskUse));
+    }
+
+    public static Document parseQuery(String jsonQuery) {
 
         try {
-//             An empty (or null) query document ({}) selects all documents in the collection.
-            Document query= new Document();
-            if(jsonQuery!=null){
-                query= Document.parse(jsonQuery);
+            // An empty (or null) query document ({}) selects all documents in the collection.
+            Document query = new Document();
+            if (jsonQuery != null) {
+                query = Document.parse(jsonQuery);
             }
-            return this.collection.find(query);
+            return query;
         } catch (JSONParseException e) {
             throw new IllegalArgumentException("Invalid query syntax", e);
         }
     }
 
-
-
     public MongoClient getMongoClient() {
         return this.mongoClient;
     }
@@ -20,6 +20,7 @@
  */
 package com.denodo.connect.mongodb.wrapper;
 
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_CONTAINS;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_EQ;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_GE;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_GT;
@@ -31,25 +32,39 @@
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_LT;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_NE;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
 import org.bson.conversions.Bson;
 
 import com.denodo.connect.mongodb.wrapper.schema.SchemaBuilder;
+import com.denodo.connect.mongodb.wrapper.schema.SchemaBuilderTask;
+import com.denodo.connect.mongodb.wrapper.schema.SchemaCache;
 import com.denodo.connect.mongodb.wrapper.util.DocumentUtils;
+import com.denodo.connect.mongodb.wrapper.util.PipelineUtils;
 import com.denodo.connect.mongodb.wrapper.util.QueryUtils;
 import com.denodo.connect.mongodb.wrapper.util.ResultUtils;
+import com.denodo.connect.mongodb.wrapper.util.SchemaInferenceUtils;
 import com.denodo.connect.mongodb.wrapper.util.SchemaFieldsParsingUtil;
 import com.denodo.vdb.engine.customwrapper.AbstractCustomWrapper;
 import com.denodo.vdb.engine.customwrapper.CustomWrapperConfiguration;
@@ -57,14 +72,23 @@
 import com.denodo.vdb.engine.customwrapper.CustomWrapperInputParameter;
 import com.denodo.vdb.engine.customwrapper.CustomWrapperResult;
 import com.denodo.vdb.engine.customwrapper.CustomWrapperSchemaParameter;
+import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition;
 import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperConditionHolder;
+import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperSimpleCondition;
 import com.denodo.vdb.engine.customwrapper.expression.CustomWrapperFieldExpression;
 import com.denodo.vdb.engine.customwrapper.input.type.CustomWrapperInputParameterTypeFactory;
 import com.mongodb.MongoClientURI;
-import com.mongodb.client.FindIterable;
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UnwindOptions;
 import com.mongodb.client.result.DeleteResult;
 
 public class MongoDBWrapper extends AbstractCustomWrapper {
@@ -76,15 +100,73 @@ public class MongoDBWrapper extends AbstractCustomWrapper {
     private static final String USER = "User";
     private static final String PASSWORD = "Password";
     private static final String DATABASE = "Database";
-    private static final String COLLECTION = "Collection";
-    private static final String FIELDS = "Fields";
+    static final String COLLECTION = "Collection";
+    static final String FIELDS = "Fields";
     private static final String CONNECTION_STRING = "Connection String";
     private static final String USE_SSL = "Use SSL/TLS";
-    private static final String INTROSPECTION_QUERY = "Introspection query";
+    static final String INTROSPECTION_QUERY = "Introspection query";
+    static final String INTROSPECTION_SAMPLE_SIZE = "Introspection sample size";
+    static final String INTROSPECTION_STRATIFIED = "Stratified introspection";
+    static final String INTROSPECTION_MAX_DOCUMENTS = "Introspection max documents";
+    static final String INTROSPECTION_MAX_TIME = "Introspection max time";
+    static final String SERVER_SIDE_INTROSPECTION = "Server-side introspection";
+    static final String INTROSPECTION_PARALLELISM = "Introspection parallelism";
+    static final String SCHEMA_CACHE_TTL = "Schema cache TTL";
+    static final String SCHEMA_CACHE_REFRESH = "Refresh schema cache";
+    private static final String SCHEMA_CACHE_DIRECTORY = "Schema cache directory";
+    private static final String WATERMARK_DIRECTORY = "Watermark directory";
+    private static final String COLLATION_LOCALE = "Collation locale";
+    private static final String COLLATION_STRENGTH = "Collation strength";
+    private static final String TEXT_SCORE_FIELD = "Text score field";
+    private static final String GEO_FIELD = "Geo field";
+    private static final String GEO_PREDICATE = "Geo predicate";
+    private static final String GEO_GEOMETRY = "Geo geometry";
+    private static final String GEO_MIN_DISTANCE = "Geo min distance";
+    private static final String GEO_MAX_DISTANCE = "Geo max distance";
+    private static final String PIPELINE = "Aggregation pipeline";
+    private static final String DISTINCT = "Distinct";
+    private static final String ALLOW_DISK_USE = "Allow disk use";
+    private static final String ESTIMATED_COUNT = "Estimated count";
+    private static final String PAGE_SIZE = "Page size";
+    private static final String PAGE = "Page";
+    private static final String PAGE_KEY = "Page key";
+    private static final String SCAN_RESUMES = "Query resumes";
+    private static final String WATERMARK_FIELD = "Watermark field";
+    private static final String WATERMARK_CONSUMER = "Watermark consumer";
+    private static final String QUERY_MAX_TIME = "Query max time";
+    private static final String ADAPTIVE_BATCH_SIZE = "Adaptive batch size";
+    private static final String MAX_ARRAY_ELEMENTS = "Max array elements";
+    private static final String MAX_DOCUMENT_SIZE = "Max document size";
+    private static final String MAX_RESULT_SIZE = "Max result size";
+    private static final String OVERSIZE_POLICY = "Oversize policy";
+    private static final String TAILABLE = "Tailable";
+    private static final String TAILABLE_AWAIT_TIME = "Tailable await time";
+    static final String MAX_SESSION_LENGTH = "Max session length";
+    private static final String LOOKUP_COLLECTION = "Lookup collection";
+    private static final String LOOKUP_LOCAL_FIELD = "Lookup local field";
+    private static final String LOOKUP_FOREIGN_FIELD = "Lookup foreign field";
+    private static final String LOOKUP_AS = "Lookup field";
+    private static final String LOOKUP_PROJECTION = "Lookup projected fields";
+    private static final String LOOKUP_OUTER = "Lookup outer join";
+    private static final String UNWIND_PATH = "Unwind array";
+    private static final String UNWIND_PRESERVE = "Unwind preserve empty arrays";
+    private static final String DEFAULT_WATERMARK_CONSUMER = "default";
+    private static final long DEFAULT_TAILABLE_AWAIT_TIME_MILLIS = 1000L;
+    // One of every BATCH_SIZE_SAMPLE_INTERVAL documents is encoded to measure the average document size
+    private static final int BATCH_SIZE_SAMPLE_INTERVAL = 64;
+    private static final String MONGODB_ID_FIELD = "_id";
+    private static final String DEFAULT_PAGE_KEY = MONGODB_ID_FIELD;
+    private static final int INTROSPECTION_STRATA = 10;
+    private static final int INTROSPECTION_MAX_DEPTH = 10;
     private static final String ARRAY_ITEM_SUFFIX = "_ITEM";
     private static final Map<String, Integer> SQL_TYPES = getSQLTypes();
     
-    private boolean stopRequested = false;
+    // Written by the thread that stops the query and read by the one that runs it
+    private volatile boolean stopRequested = false;
+    private volatile MongoCursor<?> activeCursor;
+
+    // Key of the watermark of the incremental extraction, set by query() and stored by run()
+    private String watermarkKey;
 
     private static Map<String, Integer> getSQLTypes() {
 
@@ -120,7 +202,179 @@ public CustomWrapperInputParameter[] getInputParameters() {
                 new CustomWrapperInputParameter(
                         INTROSPECTION_QUERY,
                         "Documents retrieved by this query will be analyzed to reveal their fields and build the view schema. An empty query selects all documents in the collection ",
-                        false, true, CustomWrapperInputParameterTypeFactory.longStringType())
+                        false, true, CustomWrapperInputParameterTypeFactory.longStringType()),
+                new CustomWrapperInputParameter(
+                        INTROSPECTION_SAMPLE_SIZE,
+                        "Number of documents randomly sampled ($sample) from the ones retrieved by the introspection query. By default all of them are analyzed ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        INTROSPECTION_STRATIFIED,
+                        "The sample is taken evenly across _id ranges instead of randomly. Requires an introspection sample size ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+                new CustomWrapperInputParameter(
+                        INTROSPECTION_PARALLELISM,
+                        "Number of _id ranges of the introspection query analyzed concurrently. Only used when no introspection sample size is specified. Default is 1 ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        SERVER_SIDE_INTROSPECTION,
+                        "The view schema is inferred by an aggregation at the MongoDB server, that only returns the distinct field names and types instead of whole documents ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+                new CustomWrapperInputParameter(
+                        SCHEMA_CACHE_TTL,
+                        "Seconds an inferred schema is reused for base views with the same collection and introspection settings. Requires a schema cache directory. Schemas are not cached by default ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        SCHEMA_CACHE_REFRESH,
+                        "The schema is inferred again even if there is a cached one, and the cache is updated ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+                new CustomWrapperInputParameter(
+                        INTROSPECTION_MAX_DOCUMENTS,
+                        "Maximum number of documents analyzed to build the view schema ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        INTROSPECTION_MAX_TIME,
+                        "Maximum time (milliseconds) spent analyzing documents to build the view schema ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        COLLATION_LOCALE,
+                        "Locale of the collation (e.g. en) used to compare strings case-insensitively in conditions and 'order by'. Indexes with the same collation can serve them ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        COLLATION_STRENGTH,
+                        "1 ignores case and diacritics, 2 ignores case only. Default is 2 ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        TEXT_SCORE_FIELD,
+                        "Name of a column with the relevance score of the documents matched by a CONTAINS condition delegated as a $text search: the only CONTAINS condition of the query, over the only field of the text index of the collection. Other CONTAINS conditions are matched on their fields ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        GEO_FIELD,
+                        "Field with GeoJSON objects the geo predicate is applied to, e.g. location. It should have a 2dsphere index ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        GEO_PREDICATE,
+                        "WITHIN ($geoWithin), INTERSECTS ($geoIntersects) or NEAR ($nearSphere, nearest documents first). Usually bound to an interpolation variable ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        GEO_GEOMETRY,
+                        "GeoJSON geometry of the geo predicate, e.g. { type: 'Point', coordinates: [ -3.7, 40.4 ] } ",
+                        false, true, CustomWrapperInputParameterTypeFactory.longStringType()),
+                new CustomWrapperInputParameter(
+                        GEO_MIN_DISTANCE,
+                        "Minimum distance (meters) to the Point of a NEAR predicate ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        GEO_MAX_DISTANCE,
+                        "Maximum distance (meters) to the Point of a NEAR predicate ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        PIPELINE,
+                        "[stage1[,stage2,...]] Aggregation pipeline over the collection whose output documents are the documents of the view, e.g. [ { $group: { _id: '$country', total: { $sum: '$amount' } } } ] ",
+                        false, true, CustomWrapperInputParameterTypeFactory.longStringType()),
+                new CustomWrapperInputParameter(
+                        DISTINCT,
+                        "The view returns the distinct combinations of values of the queried columns, computed at the MongoDB server ($group), instead of one row per document. For views queried with SELECT DISTINCT ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+                new CustomWrapperInputParameter(
+                        ALLOW_DISK_USE,
+                        "The aggregations of the view pipeline, lookups, unwinds and distinct can write temporary files at the MongoDB server when their stages exceed the memory limit (allowDiskUse) ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+                new CustomWrapperInputParameter(
+                        ESTIMATED_COUNT,
+                        "Counts without conditions are read from the collection metadata (estimatedDocumentCount) instead of counting documents. They can be inaccurate on sharded clusters ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+                new CustomWrapperInputParameter(
+                        PAGE_SIZE,
+                        "Number of documents of each page. The view only returns the requested page of the documents, sorted by the page key ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        PAGE,
+                        "Page returned by the view, starting at 1. Usually bound to an interpolation variable. Default is 1 ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        PAGE_KEY,
+                        "Field with unique values the pages are sorted by. Pages after one already read start after its last key instead of skipping documents. Default is _id ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        SCAN_RESUMES,
+                        "Maximum number of times a query is resumed after the last document read when the cursor or the connection fails (failover, cursor timeout, network error). Resumable queries are sorted by _id ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        WATERMARK_FIELD,
+                        "Field whose values never decrease (e.g. _id or updatedAt). Each query only returns the documents beyond the greatest value already returned to the consumer (incremental extraction). Documents with the same value are returned in _id order and resumed after the last _id returned. It should be indexed ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        WATERMARK_CONSUMER,
+                        "Name of the consumer of the incremental extraction. Each consumer has its own watermark. Usually bound to an interpolation variable ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        QUERY_MAX_TIME,
+                        "Maximum time (milliseconds) the MongoDB server spends processing a query (maxTimeMS) before aborting it. Not applied to tailable cursors ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        ADAPTIVE_BATCH_SIZE,
+                        "The cursor batch size starts small for fast first rows and grows while the queries of the view read several batches and consume them quickly, up to 4MB per batch according to the measured document size ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+                new CustomWrapperInputParameter(
+                        MAX_ARRAY_ELEMENTS,
+                        "Maximum number of elements of the arrays of a document. Arrays of the projected columns are sliced ($slice) at the MongoDB server ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        MAX_DOCUMENT_SIZE,
+                        "Maximum size (bytes) of a document ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        MAX_RESULT_SIZE,
+                        "Maximum size (bytes) of all the documents returned by a query. The query fails when its result exceeds it, whatever the oversize policy ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        OVERSIZE_POLICY,
+                        "TRUNCATE, SKIP or FAIL. Documents over the array or document limits are truncated (arrays keep their first elements and the largest fields are removed), skipped or fail the query. Default is TRUNCATE ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        TAILABLE,
+                        "The query over a capped collection does not finish after the last document, it keeps returning the documents as they are inserted (tailable cursor) ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+                new CustomWrapperInputParameter(
+                        TAILABLE_AWAIT_TIME,
+                        "Maximum time (milliseconds) the server waits for new documents of a tailable cursor before returning control. Default is 1000 ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        MAX_SESSION_LENGTH,
+                        "Seconds a tailable cursor returns documents before finishing. By default it runs until it is stopped ",
+                        false, true, CustomWrapperInputParameterTypeFactory.integerType()),
+                new CustomWrapperInputParameter(
+                        LOOKUP_COLLECTION,
+                        "Collection of the same database joined ($lookup) with the documents of the collection at the MongoDB server ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        LOOKUP_LOCAL_FIELD,
+                        "Field of the collection whose value is compared with the lookup foreign field ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        LOOKUP_FOREIGN_FIELD,
+                        "Field of the lookup collection whose value is compared with the lookup local field. It should be indexed ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        LOOKUP_AS,
+                        "Name of the field with the joined document of the lookup collection. Default is the lookup collection name ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        LOOKUP_PROJECTION,
+                        "field1[,field2,...] Fields of the joined documents to retrieve. By default all of them are retrieved ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        LOOKUP_OUTER,
+                        "Documents without any joined document are also retrieved (left outer join) ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+                new CustomWrapperInputParameter(
+                        UNWIND_PATH,
+                        "Path of an array flattened at the MongoDB server ($unwind): one row per element, with the fields of the element as columns ",
+                        false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+                new CustomWrapperInputParameter(
+                        UNWIND_PRESERVE,
+                        "Documents whose unwind array is missing, null or empty are also retrieved, with null element fields ",
+                        false, true, CustomWrapperInputParameterTypeFactory.booleanType(false))
         };
     }
 
@@ -144,7 +398,13 @@ public CustomWrapperInputParameter[] getDataSourceInputParameters() {
                 false, true, CustomWrapperInputParameterTypeFactory.stringType()),
             new CustomWrapperInputParameter(
                 USE_SSL, "The MongoDB server requires SSL/TLS connectivity",
-                false,true, CustomWrapperInputParameterTypeFactory.booleanType(false))
+                false,true, CustomWrapperInputParameterTypeFactory.booleanType(false)),
+            new CustomWrapperInputParameter(
+                SCHEMA_CACHE_DIRECTORY, "Local directory where inferred schemas are cached. Only the Denodo server user should be able to write to it ",
+                false, true, CustomWrapperInputParameterTypeFactory.stringType()),
+            new CustomWrapperInputParameter(
+                WATERMARK_DIRECTORY, "Local directory where the watermarks of incremental extractions are stored. Required by incremental extractions. Only the Denodo server user should be able to write to it ",
+                false, true, CustomWrapperInputParameterTypeFactory.stringType())
         };
     }
 
@@ -154,11 +414,12 @@ public CustomWrapperConfiguration getConfiguration() {
         final CustomWrapperConfiguration configuration = super.getConfiguration();
         configuration.setDelegateProjections(true);
         configuration.setDelegateOrConditions(true);
+        configuration.setDelegateNotConditions(true);
         configuration.setDelegateOrderBy(true);
         configuration.setAllowedOperators(new String[] {
                 OPERATOR_EQ, OPERATOR_NE, OPERATOR_LT, OPERATOR_LE,
                 OPERATOR_GT, OPERATOR_GE, OPERATOR_LIKE, OPERATOR_ISNULL,
-                OPERATOR_ISNOTNULL, OPERATOR_IN
+                OPERATOR_ISNOTNULL, OPERATOR_IN, OPERATOR_CONTAINS
         });
 
         return configuration;
@@ -186,6 +447,7 @@ public CustomWrapperSchemaParameter[] getSchemaParameters(
                 } else {
                     schema = getSchemaFromQuery(inputValues,client);
                 }
+                schema = addTextScoreField(schema, inputValues);
 
             if (logger.isTraceEnabled()) {
                 logger.trace("Finished getSchemaParameters: OK");
@@ -234,6 +496,84 @@ private static void checkInput(final Map<String, String> inputValues) {
             errors.append("Password is missing. ");
         }
 
+        checkPositiveInteger(inputValues, INTROSPECTION_SAMPLE_SIZE, errors);
+        checkPositiveInteger(inputValues, INTROSPECTION_MAX_DOCUMENTS, errors);
+        checkPositiveInteger(inputValues, INTROSPECTION_MAX_TIME, errors);
+        checkPositiveInteger(inputValues, INTROSPECTION_PARALLELISM, errors);
+        checkPositiveInteger(inputValues, SCHEMA_CACHE_TTL, errors);
+        if (StringUtils.isNotBlank(inputValues.get(SCHEMA_CACHE_TTL))
+                && StringUtils.isBlank(inputValues.get(SCHEMA_CACHE_DIRECTORY))) {
+            errors.append(SCHEMA_CACHE_TTL + " requires " + SCHEMA_CACHE_DIRECTORY + ". ");
+        }
+        if (Boolean.parseBoolean(inputValues.get(INTROSPECTION_STRATIFIED))
+                && StringUtils.isBlank(inputValues.get(INTROSPECTION_SAMPLE_SIZE))) {
+            errors.append(INTROSPECTION_STRATIFIED + " requires " + INTROSPECTION_SAMPLE_SIZE + ". ");
+        }
+        final String collationStrength = inputValues.get(COLLATION_STRENGTH);
+        if (StringUtils.isNotBlank(collationStrength)) {
+            if (!"1".equals(collationStrength.trim()) && !"2".equals(collationStrength.trim())) {
+                errors.append(COLLATION_STRENGTH + " must be 1 or 2. ");
+            } else if (StringUtils.isBlank(inputValues.get(COLLATION_LOCALE))) {
+                errors.append(COLLATION_STRENGTH + " requires " + COLLATION_LOCALE + ". ");
+            }
+        }
+
+        checkPositiveInteger(inputValues, GEO_MAX_DISTANCE, errors);
+        checkGeoMinDistance(inputValues, errors);
+        checkPositiveInteger(inputValues, PAGE_SIZE, errors);
+        checkPositiveInteger(inputValues, PAGE, errors);
+        checkPositiveInteger(inputValues, SCAN_RESUMES, errors);
+        checkPositiveInteger(inputValues, QUERY_MAX_TIME, errors);
+        checkPositiveInteger(inputValues, MAX_ARRAY_ELEMENTS, errors);
+        checkPositiveInteger(inputValues, MAX_DOCUMENT_SIZE, errors);
+        checkPositiveInteger(inputValues, MAX_RESULT_SIZE, errors);
+        try {
+            // A skipped document would be left behind the watermark of the documents that follow it
+            if (getOversizePolicy(inputValues) == MemoryGuard.Policy.SKIP && StringUtils.isNotBlank(inputValues.get(WATERMARK_FIELD))) {
+                errors.append(OVERSIZE_POLICY + " SKIP cannot be used with " + WATERMARK_FIELD + ". ");
+            }
+        } catch (final IllegalArgumentException e) {
+            errors.append(OVERSIZE_POLICY + " must be TRUNCATE, SKIP or FAIL. ");
+        }
+        checkPositiveInteger(inputValues, TAILABLE_AWAIT_TIME, errors);
+        checkPositiveInteger(inputValues, MAX_SESSION_LENGTH, errors);
+        if (Boolean.parseBoolean(inputValues.get(TAILABLE))
+                && (StringUtils.isNotBlank(inputValues.get(PAGE_SIZE)) || Boolean.parseBoolean(inputValues.get(DISTINCT))
+                    || StringUtils.isNotBlank(inputValues.get(PIPELINE)) || StringUtils.isNotBlank(inputValues.get(LOOKUP_COLLECTION))
+                    || StringUtils.isNotBlank(inputValues.get(UNWIND_PATH)) || StringUtils.isNotBlank(inputValues.get(WATERMARK_FIELD))
+                    || StringUtils.isNotBlank(inputValues.get(SCAN_RESUMES)))) {
+            errors.append(TAILABLE + " cannot be used with paging, distinct, aggregation stages, watermarks or query resumes. ");
+        }
+        if (StringUtils.isNotBlank(inputValues.get(PIPELINE))) {
+            try {
+                PipelineUtils.parsePipeline(inputValues.get(PIPELINE));
+            } catch (final IllegalArgumentException e) {
+                errors.append(e.getMessage()).append(". ");
+            }
+        }
+        if (StringUtils.isNotBlank(inputValues.get(LOOKUP_COLLECTION))
+                && (StringUtils.isBlank(inputValues.get(LOOKUP_LOCAL_FIELD))
+                    || StringUtils.isBlank(inputValues.get(LOOKUP_FOREIGN_FIELD)))) {
+            errors.append(LOOKUP_COLLECTION + " requires " + LOOKUP_LOCAL_FIELD + " and " + LOOKUP_FOREIGN_FIELD + ". ");
+        }
+        if (StringUtils.isNotBlank(inputValues.get(WATERMARK_FIELD))
+                && (StringUtils.isNotBlank(inputValues.get(PAGE_SIZE)) || Boolean.parseBoolean(inputValues.get(DISTINCT))
+                    || StringUtils.isNotBlank(inputValues.get(PIPELINE)) || StringUtils.isNotBlank(inputValues.get(LOOKUP_COLLECTION))
+                    || StringUtils.isNotBlank(inputValues.get(UNWIND_PATH)))) {
+            errors.append(WATERMARK_FIELD + " cannot be used with paging, distinct or aggregation stages. ");
+        }
+        if (StringUtils.isNotBlank(inputValues.get(WATERMARK_FIELD))
+                && StringUtils.isBlank(inputValues.get(WATERMARK_DIRECTORY))) {
+            errors.append(WATERMARK_FIELD + " requires " + WATERMARK_DIRECTORY + ". ");
+        }
+        if (StringUtils.isNotBlank(inputValues.get(GEO_PREDICATE))) {
+            try {
+                buildGeoQuery(inputValues);
+            } catch (final RuntimeException e) {
+                errors.append(e.getMessage()).append(". ");
+            }
+        }
+
         if (StringUtils.isNotBlank(errors.toString())) {
             logger.trace(errors.toString());
             throw new IllegalArgumentException(errors.toString());
@@ -241,6 +581,80 @@ private static void checkInput(final Map<String, String> inputValues) {
 
     }
 
+    private static void checkPositiveInteger(final Map<String, String> inputValues, final String name,
+            final StringBuilder errors) {
+
+        try {
+            final Integer value = getIntegerValue(inputValues, name);
+            if (value != null && value.intValue() <= 0) {
+                errors.append(name).append(" must be greater than zero. ");
+            }
+        } catch (final NumberFormatException e) {
+            errors.append(name).append(" must be an integer. ");
+        }
+    }
+
+    /*
+     * The minimum distance can be zero, but not greater than the maximum distance
+     */
+    private static void checkGeoMinDistance(final Map<String, String> inputValues, final StringBuilder errors) {
+
+        final Integer minDistance;
+        try {
+            minDistance = getIntegerValue(inputValues, GEO_MIN_DISTANCE);
+        } catch (final NumberFormatException e) {
+            errors.append(GEO_MIN_DISTANCE).append(" must be an integer. ");
+            return;
+        }
+        if (minDistance == null) {
+            return;
+        }
+        if (minDistance.intValue() < 0) {
+            errors.append(GEO_MIN_DISTANCE).append(" cannot be negative. ");
+        }
+
+        try {
+            final Integer maxDistance = getIntegerValue(inputValues, GEO_MAX_DISTANCE);
+            if (maxDistance != null && minDistance.intValue() > maxDistance.intValue()) {
+                errors.append(GEO_MIN_DISTANCE).append(" cannot be greater than ").append(GEO_MAX_DISTANCE).append(". ");
+            }
+        } catch (final NumberFormatException e) {
+            // Reported by the check of the maximum distance
+        }
+    }
+
+    private static Integer getIntegerValue(final Map<String, String> inputValues, final String name) {
+
+        final String value = inputValues.get(name);
+        return StringUtils.isBlank(value) ? null : Integer.valueOf(value.trim());
+    }
+
+    /*
+     * The text score is not stored in the documents, it is computed by $text searches. The column can only
+     * be sorted in descending order, the only order MongoDB supports for the text score.
+     */
+    private static CustomWrapperSchemaParameter[] addTextScoreField(final CustomWrapperSchemaParameter[] schema,
+            final Map<String, String> inputValues) {
+
+        final String textScoreField = StringUtils.trimToNull(inputValues.get(TEXT_SCORE_FIELD));
+        if (textScoreField == null) {
+            return schema;
+        }
+
+        for (final CustomWrapperSchemaParameter parameter : schema) {
+            if (textScoreField.equals(parameter.getName())) {
+                throw new IllegalArgumentException(TEXT_SCORE_FIELD + " '" + textScoreField + "' is already a field of the collection");
+            }
+        }
+
+        final CustomWrapperSchemaParameter[] extendedSchema = Arrays.copyOf(schema, schema.length + 1);
+        extendedSchema[schema.length] = new CustomWrapperSchemaParameter(textScoreField, Types.DOUBLE,
+            null, false /* searchable */, CustomWrapperSchemaParameter.DESC_SORT,
+            false /* updateable */, true /* nullable */, false /* mandatory */);
+
+        return extendedSchema;
+    }
+
     /*
      * Only simple types are allowed. An introspection query should be used for configuring documents with complex field
      * types like Types.Array and Types.Struct.
@@ -368,35 +782,203 @@ private static int getSQLType(final String userType) {
      * 
      * - Common fields in a collection's documents may hold different types of data. Then, the structure of a common
      * field will be the highest common denominator between all the fields with the same name.
+     *
+     * On big collections analyzing every document is not feasible, so the analysis can be restricted to a random
+     * (or _id stratified) sample, to a maximum number of documents and/or to a maximum amount of time. The whole
+     * query can also be split in _id ranges that are analyzed concurrently.
      */
     private static CustomWrapperSchemaParameter[] getSchemaFromQuery(
             final Map<String, String> inputValues,MongoDBClient client) throws Exception {
 
-        final String jsonQuery = inputValues.get(INTROSPECTION_QUERY);
+        final Integer cacheTTL = getIntegerValue(inputValues, SCHEMA_CACHE_TTL);
+        final boolean refresh = Boolean.parseBoolean(inputValues.get(SCHEMA_CACHE_REFRESH));
+        final String cacheKey = (cacheTTL == null) ? null : buildSchemaCacheKey(inputValues);
+        final File cacheDirectory = (cacheKey == null) ? null : new File(inputValues.get(SCHEMA_CACHE_DIRECTORY).trim());
 
-        
-        final FindIterable<Document> cursor = client.query(jsonQuery);
-        final SchemaBuilder builder = new SchemaBuilder();
-        MongoCursor<Document> iterator=cursor.iterator();
-        while (iterator.hasNext()) {
-            final Document document = iterator.next();
-            builder.addToSchema(document);
+        SchemaBuilder builder = null;
+        if (cacheKey != null && !refresh) {
+            builder = SchemaCache.get(cacheDirectory, cacheKey, TimeUnit.SECONDS.toMillis(cacheTTL.longValue()));
+        }
+
+        final boolean cached = (builder != null);
+        if (!cached) {
+            builder = Boolean.parseBoolean(inputValues.get(SERVER_SIDE_INTROSPECTION))
+                ? inferSchemaFromAggregation(inputValues, client)
+                : inferSchemaFromDocuments(inputValues, client);
         }
 
         final CustomWrapperSchemaParameter[] schema = builder.buildSchema();
 
         if (logger.isDebugEnabled()) {
-            logger.debug("Schema built for MongoDB source (using introspection query) is: " + getSchemaRepresentation(schema));
+            logger.debug("Schema built for MongoDB source (using introspection query" + (cached ? ", cached" : "")
+                + ") is: " + getSchemaRepresentation(schema));
         }
 
         if (schema.length == 0) {
             throw new IllegalArgumentException(INTROSPECTION_QUERY + " does not retrieve any document");
         }
 
+        if (cacheKey != null && !cached) {
+            SchemaCache.put(cacheDirectory, cacheKey, builder);
+        }
+
         return schema;
 
     }
 
+    private static SchemaBuilder inferSchemaFromDocuments(final Map<String, String> inputValues,
+            final MongoDBClient client) {
+
+        final String jsonQuery = inputValues.get(INTROSPECTION_QUERY);
+        final Integer sampleSize = getIntegerValue(inputValues, INTROSPECTION_SAMPLE_SIZE);
+        final Integer maxDocuments = getIntegerValue(inputValues, INTROSPECTION_MAX_DOCUMENTS);
+        final Integer maxTime = getIntegerValue(inputValues, INTROSPECTION_MAX_TIME);
+        final boolean stratified = Boolean.parseBoolean(inputValues.get(INTROSPECTION_STRATIFIED));
+        final Integer parallelismValue = getIntegerValue(inputValues, INTROSPECTION_PARALLELISM);
+        final int parallelism = (parallelismValue == null) ? 1 : parallelismValue.intValue();
+
+        final List<Bson> viewStages = buildViewStages(inputValues);
+
+        final List<MongoIterable<Document>> cursors = new ArrayList<MongoIterable<Document>>();
+        if (!viewStages.isEmpty()) {
+            // The documents of the view are not documents of the collection, they cannot be split by _id
+            cursors.add(client.query(jsonQuery, viewStages, sampleSize, maxDocuments));
+        } else if (sampleSize == null && parallelism > 1) {
+            cursors.addAll(client.partition(jsonQuery, parallelism));
+        } else if (sampleSize == null) {
+            cursors.add(client.query(jsonQuery, maxDocuments));
+        } else if (stratified) {
+            cursors.addAll(client.stratifiedSample(jsonQuery, sampleSize.intValue(), INTROSPECTION_STRATA));
+        } else {
+            cursors.add(client.sample(jsonQuery, sampleSize.intValue()));
+        }
+
+        final long deadline = (maxTime == null) ? Long.MAX_VALUE : System.currentTimeMillis() + maxTime.longValue();
+        final long documentLimit = (maxDocuments == null) ? Long.MAX_VALUE : maxDocuments.longValue();
+        final AtomicLong analyzed = new AtomicLong();
+
+        // Each cursor is consumed into a partial schema in its own thread and the partial schemas are merged
+        final ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, cursors.size()));
+        final SchemaBuilder builder;
+        try {
+            builder = pool.invoke(new SchemaBuilderTask(cursors, analyzed, documentLimit, deadline));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(Math.min(analyzed.get(), documentLimit) + " documents analyzed to build the schema"
+                + (System.currentTimeMillis() >= deadline ? " (" + INTROSPECTION_MAX_TIME + " reached)" : ""));
+        }
+
+        return builder;
+    }
+
+    /*
+     * Same as inferSchemaFromDocuments but the documents are analyzed at the server, which only returns the
+     * distinct (field path, BSON type) pairs. Stratified sampling is not supported here, the sample is always random.
+     */
+    private static SchemaBuilder inferSchemaFromAggregation(final Map<String, String> inputValues,
+            final MongoDBClient client) {
+
+        final Integer maxTime = getIntegerValue(inputValues, INTROSPECTION_MAX_TIME);
+        final List<Bson> pipeline = SchemaInferenceUtils.buildPipeline(
+            MongoDBClient.parseQuery(inputValues.get(INTROSPECTION_QUERY)), buildViewStages(inputValues),
+            getIntegerValue(inputValues, INTROSPECTION_SAMPLE_SIZE),
+            getIntegerValue(inputValues, INTROSPECTION_MAX_DOCUMENTS), INTROSPECTION_MAX_DEPTH);
+        final AggregateIterable<Document> cursor = client.aggregate(pipeline);
+        if (maxTime != null) {
+            cursor.maxTime(maxTime.longValue(), TimeUnit.MILLISECONDS);
+        }
+
+        final SchemaBuilder builder = new SchemaBuilder();
+        final MongoCursor<Document> iterator = cursor.iterator();
+        try {
+            while (iterator.hasNext()) {
+                final Document pair = (Document) iterator.next().get("_id");
+                builder.addToSchema((List<?>) pair.get(SchemaInferenceUtils.PATH_FIELD),
+                    pair.getString(SchemaInferenceUtils.TYPE_FIELD));
+            }
+        } finally {
+            iterator.close();
+        }
+
+        return builder;
+    }
+
+    /*
+     * The key identifies the cluster (hosts, never credentials), the namespace and every parameter that
+     * changes the result of the introspection.
+     */
+    private static String buildSchemaCacheKey(final Map<String, String> inputValues) {
+
+        final String dbName = inputValues.get(DATABASE);
+        final MongoClientURI uri = new MongoClientURI(MongoDBConnectionLocator.buildConnectionURI(
+            inputValues.get(HOST), getIntegerValue(inputValues, PORT), null, null, dbName,
+            inputValues.get(CONNECTION_STRING)));
+
+        final Document key = new Document("cluster", uri.getHosts())
+            .append("database", (uri.getDatabase() != null) ? uri.getDatabase() : dbName)
+            .append("collection", inputValues.get(COLLECTION));
+        for (final String parameter : new String[] { INTROSPECTION_QUERY, INTROSPECTION_SAMPLE_SIZE,
+                INTROSPECTION_STRATIFIED, INTROSPECTION_MAX_DOCUMENTS, INTROSPECTION_MAX_TIME,
+                SERVER_SIDE_INTROSPECTION, PIPELINE, LOOKUP_COLLECTION, LOOKUP_LOCAL_FIELD, LOOKUP_FOREIGN_FIELD, LOOKUP_AS,
+                LOOKUP_PROJECTION, LOOKUP_OUTER, UNWIND_PATH, UNWIND_PRESERVE }) {
+            key.append(parameter, StringUtils.trimToNull(inputValues.get(parameter)));
+        }
+
+        return key.toJson();
+    }
+
+    private static File getWatermarkDirectory(final Map<String, String> inputValues) {
+
+        final String directory = StringUtils.trimToNull(inputValues.get(WATERMARK_DIRECTORY));
+        if (directory == null) {
+            throw new IllegalArgumentException(WATERMARK_FIELD + " requires " + WATERMARK_DIRECTORY);
+        }
+        return new File(directory);
+    }
+
+    /*
+     * The documents beyond the watermark: the watermark field is not unique, so the documents with the
+     * same value are selected after the last _id returned.
+     */
+    private static Bson buildWatermarkQuery(final String watermarkField, final Document watermark) {
+
+        final Object value = watermark.get(WatermarkStore.VALUE);
+        final Object id = watermark.get(WatermarkStore.ID);
+        if (MONGODB_ID_FIELD.equals(watermarkField) || id == null) {
+            return Filters.gt(watermarkField, value);
+        }
+
+        return Filters.or(Filters.gt(watermarkField, value),
+            Filters.and(Filters.eq(watermarkField, value), Filters.gt(MONGODB_ID_FIELD, id)));
+    }
+
+    /*
+     * The key identifies the cluster (hosts, never credentials), the namespace, the watermark field, the
+     * consumer and the delegated query (conditions and collation), so every consumer extracts the changes of
+     * the collection independently, and a query with other conditions does not resume from the watermark
+     * of documents it has not read.
+     */
+    private static String buildWatermarkKey(final Map<String, String> inputValues, final String query,
+            final Collation collation) {
+
+        final String dbName = inputValues.get(DATABASE);
+        final MongoClientURI uri = new MongoClientURI(MongoDBConnectionLocator.buildConnectionURI(
+            inputValues.get(HOST), getIntegerValue(inputValues, PORT), null, null, dbName,
+            inputValues.get(CONNECTION_STRING)));
+
+        return new Document("cluster", uri.getHosts())
+            .append("database", (uri.getDatabase() != null) ? uri.getDatabase() : dbName)
+            .append("collection", inputValues.get(COLLECTION))
+            .append("field", inputValues.get(WATERMARK_FIELD).trim())
+            .append("consumer", StringUtils.defaultIfBlank(inputValues.get(WATERMARK_CONSUMER), DEFAULT_WATERMARK_CONSUMER).trim())
+            .append("query", query)
+            .append("collation", (collation != null) ? collation.toString() : null)
+            .toJson();
+    }
+
     @Override
     public void run(final CustomWrapperConditionHolder condition,
             final List<CustomWrapperFieldExpression> projectedFields,
@@ -417,37 +999,169 @@ public void run(final CustomWrapperConditionHolder condition,
             final CustomWrapperSchemaParameter[] schema = result.getSchema();
 
             final MongoDBClient client = connect(inputValues,false);
-            final FindIterable<Document> cursor = query(client, condition, projectedFields, schema);
+            final Integer queryMaxTime = getIntegerValue(inputValues, QUERY_MAX_TIME);
+            if (queryMaxTime != null) {
+                getCustomWrapperPlan().addPlanEntry("MongoDB max time", queryMaxTime + " ms");
+                client.setMaxTime(queryMaxTime.longValue());
+            }
+
+            // Queries that do not project any field, like COUNT(*), only need the number of rows
+            final Long count = projectedFields.isEmpty() ? count(client, condition, schema, inputValues) : null;
+            if (count != null) {
+                for (long i = 0; !this.stopRequested && i < count.longValue(); i++) {
+                    result.addRow(new Object[0], projectedFields);
+                }
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Finished run(): OK");
+                }
+                return;
+            }
+
+            final String batchSizeShape = Boolean.parseBoolean(inputValues.get(ADAPTIVE_BATCH_SIZE))
+                ? buildSchemaCacheKey(inputValues) + projectedFields
+                : null;
+            final int batchSize = (batchSizeShape != null) ? BatchSizeController.getBatchSize(batchSizeShape) : 0;
+            if (batchSizeShape != null) {
+                getCustomWrapperPlan().addPlanEntry("MongoDB batch size", String.valueOf(batchSize));
+                client.setBatchSize(batchSize);
+            }
+            if (Boolean.parseBoolean(inputValues.get(ALLOW_DISK_USE))) {
+                getCustomWrapperPlan().addPlanEntry("MongoDB allow disk use", "true");
+                client.setAllowDiskUse(true);
+            }
+
+            // Time waiting for the cursor and time delivering rows, and sampled document sizes, for the batch size
+            final Codec<Document> codec = client.getCollection().getCodecRegistry().get(Document.class);
+            long documents = 0;
+            long fetchNanos = 0;
+            long consumeNanos = 0;
+            long sampledBytes = 0;
+            long sampledDocuments = 0;
+
+            // The guard reads the size of the documents as they are decoded
+            final MemoryGuard guard = buildMemoryGuard(inputValues, codec);
+            if (guard != null) {
+                client.setDocumentCodec(guard.getCodec());
+            }
+
+            final MongoCursor<Document> iterator = query(client, condition, projectedFields, schema, inputValues);
          
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Querying mongoDB source using the following schema: " + getSchemaRepresentation(schema));
             }
 
-            final List<Object> row = new ArrayList<Object>();
-            MongoCursor<Document> iterator=cursor.iterator();
-            while (!stopRequested && iterator.hasNext()) {
-                if (this.stopRequested) {
-                    log(LOG_DEBUG, "Stop has been requested");
-                    break;
+            // The documents of incremental extractions are sorted by the watermark field and _id, so the
+            // watermark is the value and the _id of the last one
+            final String watermarkField = StringUtils.trimToNull(inputValues.get(WATERMARK_FIELD));
+            final List<String> watermarkPath = (watermarkField != null) ? Arrays.asList(watermarkField.split("\\.")) : null;
+            Object watermark = null;
+            Object watermarkId = null;
+
+            // Tailable cursors do not block waiting for new documents, so stop requests and the end of the
+            // session are noticed at least once per await time
+            final boolean tailable = Boolean.parseBoolean(inputValues.get(TAILABLE));
+            final Integer maxSessionLength = getIntegerValue(inputValues, MAX_SESSION_LENGTH);
+            final long deadline = (tailable && maxSessionLength != null)
+                ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(maxSessionLength.longValue())
+                : Long.MAX_VALUE;
+
+            setActiveCursor(iterator);
+            try {
+                final List<Object> row = new ArrayList<Object>();
+                while (!this.stopRequested && System.currentTimeMillis() < deadline) {
+
+                    final long fetchStart = System.nanoTime();
+                    final Document document;
+                    if (tailable) {
+                        document = iterator.tryNext();
+                        if (document == null) {
+                            // The server closes tailable cursors over empty or non-capped collections
+                            if (iterator.getServerCursor() == null) {
+                                break;
+                            }
+                            continue;
+                        }
+                    } else if (iterator.hasNext()) {
+                        document = iterator.next();
+                    } else {
+                        break;
+                    }
+                    final long consumeStart = System.nanoTime();
+                    fetchNanos += consumeStart - fetchStart;
+
+                    // Truncation can remove the watermark field. Documents are only skipped without watermark
+                    final Object documentWatermark = (watermarkPath != null) ? document.getEmbedded(watermarkPath, Object.class) : null;
+                    final Document guarded = (guard != null) ? guard.check(document) : document;
+                    if (guarded == null) {
+                        continue;
+                    }
+
+                    if (batchSizeShape != null && documents++ % BATCH_SIZE_SAMPLE_INTERVAL == 0) {
+                        sampledBytes += new RawBsonDocument(guarded, codec).getByteBuffer().remaining();
+                        sampledDocuments++;
+                    }
+
+                    for (final CustomWrapperFieldExpression field : projectedFields) {
+                        final Object column = ResultUtils.buildResultColumnValue(guarded, field.getName(), schema);
+                        row.add(column);
+                    }
+
+                    result.addRow(row.toArray(), projectedFields);
+                    row.clear();
+                    consumeNanos += System.nanoTime() - consumeStart;
+
+                    watermark = documentWatermark;
+                    watermarkId = document.get(MONGODB_ID_FIELD);
                 }
+            } finally {
+                setActiveCursor(null);
+                iterator.close();
+            }
+            if (this.stopRequested) {
+                log(LOG_DEBUG, "Stop has been requested");
+            }
+
+            // A stopped extraction has not returned every document beyond the previous watermark
+            if (watermark != null && !this.stopRequested) {
+                WatermarkStore.put(getWatermarkDirectory(inputValues), this.watermarkKey, watermark,
+                    watermarkId);
+            }
 
-                final Document document = iterator.next();
-                for (final CustomWrapperFieldExpression field : projectedFields) {
-                    final Object column = ResultUtils.buildResultColumnValue(document, field.getName(), schema);
-                    row.add(column);
+            if (guard != null) {
+                if (guard.getTruncatedDocuments() > 0 || guard.getSkippedDocuments() > 0) {
+                    logger.warn("Documents over the limits of the view: " + guard.getTruncatedDocuments() + " truncated, "
+                        + guard.getSkippedDocuments() + " skipped");
                 }
+                getCustomWrapperPlan().addPlanEntry("MongoDB truncated documents", String.valueOf(guard.getTruncatedDocuments()));
+                getCustomWrapperPlan().addPlanEntry("MongoDB skipped documents", String.valueOf(guard.getSkippedDocuments()));
+            }
 
-                result.addRow(row.toArray(), projectedFields);
-                row.clear();
+            // A stopped query does not show how many documents the view returns
+            if (batchSizeShape != null && !this.stopRequested) {
+                final int nextBatchSize = BatchSizeController.record(batchSizeShape, batchSize, documents,
+                    (sampledDocuments > 0) ? (double) sampledBytes / sampledDocuments : 0, fetchNanos, consumeNanos);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Read " + documents + " documents in batches of " + batchSize + " (" + fetchNanos / 1000000L
+                        + " ms waiting for the cursor, " + consumeNanos / 1000000L + " ms delivering rows). Next batch size: " + nextBatchSize);
+                }
+                getCustomWrapperPlan().addPlanEntry("MongoDB next batch size", String.valueOf(nextBatchSize));
+            }
+
+            if (iterator instanceof ResumableCursor) {
+                getCustomWrapperPlan().addPlanEntry("MongoDB query resumes", String.valueOf(((ResumableCursor) iterator).getResumes()));
             }
-            iterator.close();
 
             if (logger.isTraceEnabled()) {
                 logger.trace("Finished run(): OK");
             }
 
         } catch (final Exception e) {
+            if (this.stopRequested) {
+                // stop() closes the cursor, interrupting the reading
+                log(LOG_DEBUG, "Stop has been requested: " + e.getMessage());
+                return;
+            }
             final String errorMsg = "MongoDB wrapper error. " + e.getMessage();
             logger.error(errorMsg, e);
             if (logger.isTraceEnabled()) {
@@ -575,7 +1289,7 @@ public int delete(final CustomWrapperConditionHolder condition, final Map<String
        
     }
 
-    private static MongoDBClient connect(final Map<String, String> inputValues, Boolean test) throws Exception {
+    static MongoDBClient connect(final Map<String, String> inputValues, Boolean test) throws Exception {
 
         final String host = inputValues.get(HOST);
         final String portAsString = inputValues.get(PORT);
@@ -611,13 +1325,66 @@ private static MongoDBClient connect(final Map<String, String> inputValues, Bool
     }
 
 
-    private FindIterable<Document> query(
+    private MongoCursor<Document> query(
             final MongoDBClient client,
             final CustomWrapperConditionHolder condition,
             final List<CustomWrapperFieldExpression> projectedFields,
-            final CustomWrapperSchemaParameter[] schema) {
+            final CustomWrapperSchemaParameter[] schema,
+            final Map<String, String> inputValues) throws IOException {
+
+        final Collation collation = buildCollation(inputValues);
+        if (collation != null) {
+            final String collationStringRep = collation.asDocument().toString();
+            if (logger.isDebugEnabled()) {
+                logger.debug("The collation in MongoDB is: '" + collationStringRep + "'");
+            }
+            getCustomWrapperPlan().addPlanEntry("MongoDB collation", collationStringRep);
+        }
 
-        final Bson query = QueryUtils.buildQuery(schema, condition.getComplexCondition());
+        // Conditions over the fields added or changed by the view stages are applied after those stages. The rest
+        // are applied before them, so they can use the indexes of the collection.
+        final List<Bson> viewStages = buildViewStages(inputValues);
+        final List<CustomWrapperCondition> conditions = QueryUtils.getConjuncts(condition.getComplexCondition());
+        CustomWrapperSimpleCondition textSearchCondition = getTextSearchCondition(client, conditions);
+        final List<CustomWrapperCondition> viewConditions = new ArrayList<CustomWrapperCondition>();
+        if (!viewStages.isEmpty()) {
+            final Set<String> viewFields = getViewFields(inputValues);
+            for (final Iterator<CustomWrapperCondition> it = conditions.iterator(); it.hasNext();) {
+                final CustomWrapperCondition c = it.next();
+                if (viewFields == null || !Collections.disjoint(viewFields, QueryUtils.getReferencedFields(c))) {
+                    viewConditions.add(c);
+                    it.remove();
+                }
+            }
+        }
+
+        // $text can only be used in the first stage, not after the view stages
+        if (!conditions.contains(textSearchCondition)) {
+            textSearchCondition = null;
+        }
+        Bson query = QueryUtils.buildQuery(schema, conditions, textSearchCondition, collation);
+        final String unwindPath = StringUtils.trimToNull(inputValues.get(UNWIND_PATH));
+        if (unwindPath != null) {
+            // Conditions over the columns of the unwound documents also select the documents before the $unwind
+            // (and the pipeline and the lookup), except the conditions over the fields those stages add or
+            // change. None do if the array is one of those fields or the pipeline may reshape the documents.
+            final Set<String> excludedFields = getFieldsBeforeUnwind(inputValues);
+            if (excludedFields != null && !excludedFields.contains(unwindPath.split("\\.")[0])) {
+                final Bson unwindQuery = QueryUtils.buildUnwindQuery(schema, viewConditions, unwindPath, excludedFields,
+                    collation);
+                if (unwindQuery != null) {
+                    query = Filters.and(query, unwindQuery);
+                }
+            }
+        }
+        final Bson geoQuery = buildGeoQuery(inputValues);
+        if (geoQuery != null) {
+            if ((!viewStages.isEmpty() || Boolean.parseBoolean(inputValues.get(DISTINCT)))
+                    && QueryUtils.GEO_NEAR.equalsIgnoreCase(inputValues.get(GEO_PREDICATE).trim())) {
+                throw new IllegalArgumentException("NEAR predicates ($nearSphere) cannot be used in aggregations");
+            }
+            query = Filters.and(query, geoQuery);
+        }
         if(query != null){ // Note this should never be null (it is guaranteeed at QueryUtils.buildQuery(...)
             final BsonDocument queryDocument = query.toBsonDocument(null, client.getMongoClient().getMongoClientOptions().getCodecRegistry());
             final String queryStringRep = (queryDocument != null? queryDocument.toString() : "(not representable)");
@@ -627,7 +1394,43 @@ private FindIterable<Document> query(
             getCustomWrapperPlan().addPlanEntry("MongoDB condition query", queryStringRep);
         }
 
-        final Bson projection=buildProjection(projectedFields);
+        final Bson viewQuery = viewConditions.isEmpty() ? null : QueryUtils.buildQuery(schema, viewConditions, collation);
+        if (!viewStages.isEmpty()) {
+            final List<String> stagesStringRep = new ArrayList<String>();
+            for (final Bson stage : viewStages) {
+                stagesStringRep.add(stage.toBsonDocument(null, client.getMongoClient().getMongoClientOptions().getCodecRegistry()).toString());
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("The view stages in MongoDB are: '" + stagesStringRep + "'");
+            }
+            getCustomWrapperPlan().addPlanEntry("MongoDB view stages", stagesStringRep.toString());
+        }
+        if (viewQuery != null) {
+            final String viewQueryStringRep = viewQuery.toBsonDocument(null, client.getMongoClient().getMongoClientOptions().getCodecRegistry()).toString();
+            if (logger.isDebugEnabled()) {
+                logger.debug("The condition over the view stages in MongoDB is: '" + viewQueryStringRep + "'");
+            }
+            getCustomWrapperPlan().addPlanEntry("MongoDB view condition query", viewQueryStringRep);
+        }
+
+        // The text score can only be projected and sorted when the query has a $text search, and it is
+        // lost when grouping the documents
+        final String textScoreField = StringUtils.trimToNull(inputValues.get(TEXT_SCORE_FIELD));
+        // Queries that project no field, like COUNT(*), count the documents instead of grouping them on nothing
+        final boolean distinct = Boolean.parseBoolean(inputValues.get(DISTINCT))
+            && hasDistinctFields(projectedFields, textScoreField);
+        final boolean textSearch = (textSearchCondition != null) && !distinct;
+
+        // $slice projections are only pushed down to find queries, aggregations truncate the arrays in the wrapper
+        final Bson projection;
+        if (distinct) {
+            projection = null;
+        } else if (viewStages.isEmpty()) {
+            projection = buildSlicedProjection(projectedFields, schema, textScoreField, textSearch,
+                getIntegerValue(inputValues, MAX_ARRAY_ELEMENTS));
+        } else {
+            projection = buildProjection(projectedFields, textScoreField, textSearch);
+        }
         if(projection != null){
             final BsonDocument projectionDocument = projection.toBsonDocument(null, client.getMongoClient().getMongoClientOptions().getCodecRegistry());
             final String projectionStringRep = (projectionDocument != null? projectionDocument.toString() : "(not representable)");
@@ -637,7 +1440,7 @@ private FindIterable<Document> query(
             getCustomWrapperPlan().addPlanEntry("MongoDB projection query", projectionStringRep);
         }
 
-        final Bson orderBy = QueryUtils.buildOrderBy(getOrderByExpressions());
+        final Bson orderBy = QueryUtils.buildOrderBy(getOrderByExpressions(), textScoreField, textSearch);
         if(orderBy != null){
             final BsonDocument orderByDocument = orderBy.toBsonDocument(null, client.getMongoClient().getMongoClientOptions().getCodecRegistry());
             final String orderByStringRep = (orderByDocument != null? orderByDocument.toString() : "(not representable)");
@@ -646,22 +1449,369 @@ private FindIterable<Document> query(
         }
 
 
-        return client.query(query, orderBy, projection);
+        if (Boolean.parseBoolean(inputValues.get(TAILABLE))) {
+            if (distinct || !viewStages.isEmpty() || orderBy != null || StringUtils.isNotBlank(inputValues.get(PAGE_SIZE))
+                    || StringUtils.isNotBlank(inputValues.get(WATERMARK_FIELD))
+                    || (geoQuery != null && QueryUtils.GEO_NEAR.equalsIgnoreCase(inputValues.get(GEO_PREDICATE).trim()))) {
+                throw new IllegalArgumentException("Tailable cursors return the documents in insertion order, they can only be used in views without distinct, paging, watermarks, aggregation stages, 'order by' or NEAR predicates");
+            }
+            final Integer awaitTime = getIntegerValue(inputValues, TAILABLE_AWAIT_TIME);
+            final long awaitTimeMillis = (awaitTime != null) ? awaitTime.longValue() : DEFAULT_TAILABLE_AWAIT_TIME_MILLIS;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Tailing MongoDB collection with an await time of " + awaitTimeMillis + " ms");
+            }
+            getCustomWrapperPlan().addPlanEntry("MongoDB tailable cursor", "await time " + awaitTimeMillis + " ms");
+            return client.tail(query, projection, collation, awaitTimeMillis).iterator();
+        }
+
+        final String watermarkField = StringUtils.trimToNull(inputValues.get(WATERMARK_FIELD));
+        if (watermarkField != null) {
+            if (distinct || !viewStages.isEmpty() || StringUtils.isNotBlank(inputValues.get(PAGE_SIZE))
+                    || (geoQuery != null && QueryUtils.GEO_NEAR.equalsIgnoreCase(inputValues.get(GEO_PREDICATE).trim()))) {
+                throw new IllegalArgumentException("Incremental extractions can only be used in views without distinct, paging, aggregation stages or NEAR predicates");
+            }
+            if (orderBy != null && !new Document(watermarkField, Integer.valueOf(1)).equals(orderBy)) {
+                throw new IllegalArgumentException("Incremental extractions are sorted by " + watermarkField + " in ascending order, they cannot be sorted by other fields");
+            }
+            this.watermarkKey = buildWatermarkKey(inputValues,
+                query.toBsonDocument(null, client.getMongoClient().getMongoClientOptions().getCodecRegistry()).toJson(), collation);
+            final Document watermark = WatermarkStore.get(getWatermarkDirectory(inputValues), this.watermarkKey);
+            final String watermarkStringRep = (watermark != null) ? watermarkField + " > " + watermark.toJson() : "none";
+            if (logger.isDebugEnabled()) {
+                logger.debug("Extracting MongoDB documents with " + watermarkStringRep);
+            }
+            getCustomWrapperPlan().addPlanEntry("MongoDB watermark", watermarkStringRep);
+            // The watermark field and _id are always retrieved, to store the new watermark
+            return client.query((watermark != null) ? Filters.and(query, buildWatermarkQuery(watermarkField, watermark)) : query,
+                MONGODB_ID_FIELD.equals(watermarkField) ? Sorts.ascending(watermarkField) : Sorts.ascending(watermarkField, MONGODB_ID_FIELD),
+                (projection != null) ? Projections.fields(projection, Projections.include(watermarkField, MONGODB_ID_FIELD)) : null,
+                collation).iterator();
+        }
+
+        final Integer pageSize = getIntegerValue(inputValues, PAGE_SIZE);
+        if (pageSize != null) {
+            final String pageKey = StringUtils.defaultIfBlank(inputValues.get(PAGE_KEY), DEFAULT_PAGE_KEY).trim();
+            final Integer page = getIntegerValue(inputValues, PAGE);
+            if (distinct || !viewStages.isEmpty() || (geoQuery != null && QueryUtils.GEO_NEAR.equalsIgnoreCase(inputValues.get(GEO_PREDICATE).trim()))) {
+                throw new IllegalArgumentException("Pages can only be read from views without distinct, aggregation stages or NEAR predicates");
+            }
+            if (orderBy != null && !new Document(pageKey, Integer.valueOf(1)).equals(orderBy)) {
+                throw new IllegalArgumentException("Pages are sorted by " + pageKey + " in ascending order, they cannot be sorted by other fields");
+            }
+            final String pageStringRep = "page " + (page != null ? page : "1") + " of " + pageSize + " documents by " + pageKey;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Reading MongoDB " + pageStringRep);
+            }
+            getCustomWrapperPlan().addPlanEntry("MongoDB page", pageStringRep);
+            return client.query(query, projection, collation, pageKey, pageSize.intValue(), page != null ? page.intValue() : 1).iterator();
+        }
+
+        if (distinct) {
+            final List<String> distinctFields = new ArrayList<String>();
+            for (final CustomWrapperFieldExpression field : projectedFields) {
+                if (!field.getName().equals(textScoreField)) {
+                    distinctFields.add(field.getName());
+                }
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("The distinct fields in MongoDB are: '" + distinctFields + "'");
+            }
+            getCustomWrapperPlan().addPlanEntry("MongoDB distinct fields", distinctFields.toString());
+            return client.distinct(query, viewStages, viewQuery, distinctFields, orderBy, collation).iterator();
+        }
+        if (viewStages.isEmpty()) {
+            // Only queries sorted by _id can be resumed, and $nearSphere sorts by distance
+            final Integer scanResumes = getIntegerValue(inputValues, SCAN_RESUMES);
+            if (scanResumes != null && (orderBy == null || new Document(MONGODB_ID_FIELD, Integer.valueOf(1)).equals(orderBy))
+                    && (geoQuery == null || !QueryUtils.GEO_NEAR.equalsIgnoreCase(inputValues.get(GEO_PREDICATE).trim()))) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("The MongoDB query is resumed up to " + scanResumes + " times");
+                }
+                return client.scan(query, projection, collation, scanResumes.intValue());
+            }
+            return client.query(query, orderBy, projection, collation).iterator();
+        }
+        return client.query(query, viewStages, viewQuery, orderBy, projection, collation).iterator();
+    }
+
+    /*
+     * Counts the documents matching the condition at the server, so they do not need to be retrieved.
+     * Null if the view is not a plain collection, it is paged, incremental or tailable, or the condition
+     * cannot be counted, as $nearSphere cannot be used by countDocuments.
+     */
+    private Long count(final MongoDBClient client, final CustomWrapperConditionHolder condition,
+            final CustomWrapperSchemaParameter[] schema, final Map<String, String> inputValues) {
+
+        // Distinct views are not grouped when no field is projected
+        final Bson geoQuery = buildGeoQuery(inputValues);
+        if (!buildViewStages(inputValues).isEmpty()
+                || StringUtils.isNotBlank(inputValues.get(PAGE_SIZE)) || StringUtils.isNotBlank(inputValues.get(WATERMARK_FIELD))
+                || Boolean.parseBoolean(inputValues.get(TAILABLE))
+                || (geoQuery != null && QueryUtils.GEO_NEAR.equalsIgnoreCase(inputValues.get(GEO_PREDICATE).trim()))) {
+            return null;
+        }
+
+        final Collation collation = buildCollation(inputValues);
+        final List<CustomWrapperCondition> conditions = QueryUtils.getConjuncts(condition.getComplexCondition());
+        Bson query = QueryUtils.buildQuery(schema, conditions, getTextSearchCondition(client, conditions), collation);
+        if (geoQuery != null) {
+            query = Filters.and(query, geoQuery);
+        }
+
+        final boolean estimated = Boolean.parseBoolean(inputValues.get(ESTIMATED_COUNT))
+            && condition.getComplexCondition() == null && geoQuery == null;
+        final String queryStringRep = query.toBsonDocument(null, client.getMongoClient().getMongoClientOptions().getCodecRegistry()).toString();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Counting MongoDB documents" + (estimated ? " (estimated)" : "") + " matching: '" + queryStringRep + "'");
+        }
+        getCustomWrapperPlan().addPlanEntry("MongoDB count", estimated ? "estimatedDocumentCount" : "countDocuments " + queryStringRep);
+
+        return Long.valueOf(client.count(query, collation, estimated));
+    }
+
+    private static boolean hasDistinctFields(final List<CustomWrapperFieldExpression> projectedFields,
+            final String textScoreField) {
+
+        for (final CustomWrapperFieldExpression field : projectedFields) {
+            if (!field.getName().equals(textScoreField)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Aggregation stages applied to the documents of the collection to build the documents of the view.
+     * Empty when the view documents are the collection documents.
+     *
+     * The aggregation pipeline of the view, if any, goes first, so lookups and unwinds apply to its output.
+     *
+     * A lookup joins each document with the documents of the lookup collection whose foreign field is
+     * equal to its local field, one document per joined document. The lookup is done with the localField
+     * and foreignField form, which uses the indexes of the foreign field.
+     */
+    private static List<Bson> buildViewStages(final Map<String, String> inputValues) {
+
+        final List<Bson> stages = new ArrayList<Bson>();
+
+        final String pipeline = StringUtils.trimToNull(inputValues.get(PIPELINE));
+        if (pipeline != null) {
+            stages.addAll(PipelineUtils.parsePipeline(pipeline));
+        }
+
+        final String lookupCollection = StringUtils.trimToNull(inputValues.get(LOOKUP_COLLECTION));
+        if (lookupCollection != null) {
+            final String lookupField = getLookupField(inputValues);
+            stages.add(Aggregates.lookup(lookupCollection, inputValues.get(LOOKUP_LOCAL_FIELD).trim(),
+                inputValues.get(LOOKUP_FOREIGN_FIELD).trim(), lookupField));
+            stages.add(Aggregates.unwind("$" + lookupField,
+                new UnwindOptions().preserveNullAndEmptyArrays(Boolean.valueOf(inputValues.get(LOOKUP_OUTER)))));
+
+            final String lookupProjection = StringUtils.trimToNull(inputValues.get(LOOKUP_PROJECTION));
+            if (lookupProjection != null) {
+                final Document joinedDocument = new Document();
+                for (final String field : lookupProjection.split(",")) {
+                    joinedDocument.append(field.trim(), "$" + lookupField + "." + field.trim());
+                }
+                stages.add(Aggregates.addFields(new com.mongodb.client.model.Field<Document>(lookupField, joinedDocument)));
+            }
+        }
+
+        final String unwindPath = StringUtils.trimToNull(inputValues.get(UNWIND_PATH));
+        if (unwindPath != null) {
+            stages.addAll(buildUnwindStages(unwindPath, Boolean.parseBoolean(inputValues.get(UNWIND_PRESERVE))));
+        }
+
+        return stages;
+    }
+
+    /*
+     * One document per element of the array: the fields of the elements that are subdocuments become top
+     * level fields (replacing the fields of the document with the same name) and the array field is removed.
+     * Elements that are not subdocuments are kept as the value of the array field.
+     */
+    private static List<Bson> buildUnwindStages(final String unwindPath, final boolean preserve) {
+
+        final String element = "$" + unwindPath;
+        final Document isSubdocument = new Document("$eq", Arrays.asList(new Document("$type", element), "object"));
+
+        final List<Bson> stages = new ArrayList<Bson>();
+        stages.add(Aggregates.unwind(element, new UnwindOptions().preserveNullAndEmptyArrays(Boolean.valueOf(preserve))));
+        stages.add(Aggregates.replaceRoot(new Document("$mergeObjects", Arrays.asList("$$ROOT",
+            new Document("$cond", Arrays.asList(isSubdocument, element, new Document()))))));
+        stages.add(Aggregates.addFields(new com.mongodb.client.model.Field<Document>(unwindPath,
+            new Document("$cond", Arrays.asList(isSubdocument, "$$REMOVE", element)))));
+
+        return stages;
+    }
+
+    /*
+     * The CONTAINS condition delegated as a $text search, if any. The text index is only looked up when
+     * there is a candidate condition. The rest of the CONTAINS conditions are matched on their fields.
+     */
+    private static CustomWrapperSimpleCondition getTextSearchCondition(final MongoDBClient client,
+            final List<CustomWrapperCondition> conditions) {
+
+        final CustomWrapperSimpleCondition textSearchCondition = QueryUtils.getTextSearchCondition(conditions);
+        if (textSearchCondition == null || !QueryUtils.isTextIndexed(textSearchCondition, client.getTextIndexFields())) {
+            return null;
+        }
+
+        return textSearchCondition;
+    }
+
+    /*
+     * Top level fields of the view documents that are added or changed by the view stages, or null if
+     * any field can be: the fields of unwound elements become top level fields and most pipelines reshape
+     * or aggregate the documents.
+     */
+    private static Set<String> getViewFields(final Map<String, String> inputValues) {
+
+        if (StringUtils.isNotBlank(inputValues.get(UNWIND_PATH))) {
+            return null;
+        }
+
+        return getFieldsBeforeUnwind(inputValues);
+    }
+
+    /*
+     * Top level fields added or changed by the pipeline and the lookup, the stages before the unwind, or
+     * null if any field can be.
+     */
+    private static Set<String> getFieldsBeforeUnwind(final Map<String, String> inputValues) {
+
+        final Set<String> fields = new HashSet<String>();
+        final String pipeline = StringUtils.trimToNull(inputValues.get(PIPELINE));
+        if (pipeline != null) {
+            final Set<String> pipelineFields = PipelineUtils.getChangedFields(PipelineUtils.parsePipeline(pipeline));
+            if (pipelineFields == null) {
+                return null;
+            }
+            fields.addAll(pipelineFields);
+        }
+        if (StringUtils.isNotBlank(inputValues.get(LOOKUP_COLLECTION))) {
+            fields.add(getLookupField(inputValues));
+        }
+
+        return fields;
+    }
+
+    private static String getLookupField(final Map<String, String> inputValues) {
+
+        final String lookupField = StringUtils.trimToNull(inputValues.get(LOOKUP_AS));
+        return (lookupField != null) ? lookupField : inputValues.get(LOOKUP_COLLECTION).trim();
+    }
+
+    /*
+     * The geo predicate is set with view parameters, as VDP does not delegate geospatial functions.
+     * Null if there is no geo predicate.
+     */
+    private static Bson buildGeoQuery(final Map<String, String> inputValues) {
+
+        final String predicate = StringUtils.trimToNull(inputValues.get(GEO_PREDICATE));
+        if (predicate == null) {
+            return null;
+        }
+
+        return QueryUtils.buildGeoQuery(StringUtils.trimToNull(inputValues.get(GEO_FIELD)), predicate,
+            StringUtils.trimToNull(inputValues.get(GEO_GEOMETRY)), getIntegerValue(inputValues, GEO_MIN_DISTANCE),
+            getIntegerValue(inputValues, GEO_MAX_DISTANCE));
+    }
+
+    /*
+     * Strings are compared case-insensitively when a collation locale is specified: strength 2 (secondary)
+     * ignores case and strength 1 (primary) ignores case and diacritics.
+     */
+    private static Collation buildCollation(final Map<String, String> inputValues) {
+
+        final String locale = StringUtils.trimToNull(inputValues.get(COLLATION_LOCALE));
+        if (locale == null) {
+            return null;
+        }
+
+        final Integer strength = getIntegerValue(inputValues, COLLATION_STRENGTH);
+        return Collation.builder()
+            .locale(locale)
+            .collationStrength((strength != null && strength.intValue() == 1)
+                ? CollationStrength.PRIMARY : CollationStrength.SECONDARY)
+            .build();
     }
     
+    /*
+     * Arrays of the projected columns are sliced at the server to one element more than the maximum, so
+     * the documents over the limit can still be told apart and counted.
+     */
+    private static Bson buildSlicedProjection(final List<CustomWrapperFieldExpression> projectedFields,
+            final CustomWrapperSchemaParameter[] schema, final String textScoreField, final boolean textSearch,
+            final Integer maxArrayElements) {
+
+        final Bson projection = buildProjection(projectedFields, textScoreField, textSearch);
+        if (projection == null || maxArrayElements == null || schema == null) {
+            return projection;
+        }
+
+        final List<Bson> slices = new ArrayList<Bson>();
+        slices.add(projection);
+        for (final CustomWrapperFieldExpression field : projectedFields) {
+            for (final CustomWrapperSchemaParameter parameter : schema) {
+                if (parameter.getName().equals(field.getName()) && parameter.getType() == Types.ARRAY) {
+                    slices.add(Projections.slice(field.getName(), maxArrayElements.intValue() + 1));
+                }
+            }
+        }
+        return Projections.fields(slices);
+    }
+
+    private static MemoryGuard buildMemoryGuard(final Map<String, String> inputValues, final Codec<Document> codec) {
+
+        final Integer maxArrayElements = getIntegerValue(inputValues, MAX_ARRAY_ELEMENTS);
+        final Integer maxDocumentSize = getIntegerValue(inputValues, MAX_DOCUMENT_SIZE);
+        final Integer maxResultSize = getIntegerValue(inputValues, MAX_RESULT_SIZE);
+        if (maxArrayElements == null && maxDocumentSize == null && maxResultSize == null) {
+            return null;
+        }
+
+        final MemoryGuard.Policy policy = getOversizePolicy(inputValues);
+        if (policy == MemoryGuard.Policy.SKIP && StringUtils.isNotBlank(inputValues.get(WATERMARK_FIELD))) {
+            throw new IllegalArgumentException(OVERSIZE_POLICY + " SKIP cannot be used with " + WATERMARK_FIELD);
+        }
+
+        return new MemoryGuard(
+            (maxArrayElements != null) ? maxArrayElements.intValue() : 0,
+            (maxDocumentSize != null) ? maxDocumentSize.longValue() : 0L,
+            (maxResultSize != null) ? maxResultSize.longValue() : 0L,
+            policy, codec);
+    }
+
+    private static MemoryGuard.Policy getOversizePolicy(final Map<String, String> inputValues) {
+
+        final String policy = inputValues.get(OVERSIZE_POLICY);
+        return StringUtils.isBlank(policy) ? MemoryGuard.Policy.TRUNCATE : MemoryGuard.Policy.valueOf(policy.trim().toUpperCase());
+    }
+
     public static Bson buildProjection(List<CustomWrapperFieldExpression> projectedFields){
+        return buildProjection(projectedFields, null, false);
+    }
+
+    public static Bson buildProjection(List<CustomWrapperFieldExpression> projectedFields,
+            String textScoreField, boolean textSearch){
 
+        final Bson textScore = (textScoreField != null && textSearch) ? Projections.metaTextScore(textScoreField) : null;
         if (projectedFields == null || projectedFields.isEmpty()) {
-            return null;
+            return textScore;
         }
 
         final List<String> projectedString= new ArrayList<String>();
 
         for (final CustomWrapperFieldExpression field : projectedFields) {
-            projectedString.add(field.getName());
-
+            if (!field.getName().equals(textScoreField)) {
+                projectedString.add(field.getName());
+            }
+        }
+        if (textScore == null) {
+            return Projections.include(projectedString);
         }
-        return Projections.include(projectedString);
+        return Projections.fields(Projections.include(projectedString), textScore);
 
     }
 
@@ -688,10 +1838,36 @@ private static String getSchemaRepresentation(final CustomWrapperSchemaParameter
         return strBuilder.toString();
     }
 
+    /*
+     * Registers the cursor being read by run(), so stop() can close it. A closed cursor is released at the
+     * server (killCursors) even if run() is waiting for a getMore.
+     */
+    void setActiveCursor(final MongoCursor<?> cursor) {
+
+        this.activeCursor = cursor;
+        if (cursor != null && this.stopRequested) {
+            closeCursor(cursor);
+        }
+    }
+
     @Override
     public boolean stop() {
-    	this.stopRequested = true;
-		return true;
+
+        this.stopRequested = true;
+        final MongoCursor<?> cursor = this.activeCursor;
+        if (cursor != null) {
+            closeCursor(cursor);
+        }
+        return true;
+    }
+
+    private static void closeCursor(final MongoCursor<?> cursor) {
+
+        try {
+            cursor.close();
+        } catch (final RuntimeException e) {
+            logger.debug("Error closing the cursor of a stopped query: " + e.getMessage());
+        }
     }
  
 }
@@ -0,0 +1,87 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+
+/**
+ * Keeps, for every paged query shape (collection, filter, collation, page key and page size), the last key
+ * of the pages already read. A page that follows a known one is read seeking past that key ($gt) instead of
+ * skipping every document of the previous pages.
+ *
+ * Both the number of shapes and the number of pages of each shape are bounded, discarding the least
+ * recently used shapes and the pages at the ends.
+ */
+public final class PageBoundaryCache {
+
+    private static final int MAX_SHAPES = 1000;
+    private static final int MAX_PAGES = 100;
+
+    private static final Map<String, NavigableMap<Integer, Object>> boundaries =
+        new LinkedHashMap<String, NavigableMap<Integer, Object>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, NavigableMap<Integer, Object>> eldest) {
+                return size() > MAX_SHAPES;
+            }
+        };
+
+    // Suppress default constructor for noninstantiability
+    private PageBoundaryCache() {
+
+    }
+
+    /**
+     * Returns the known boundary closest to the start of the page: the last key of the nearest
+     * previous page, or null if none of the previous pages has been read.
+     */
+    public static synchronized Map.Entry<Integer, Object> get(final String shape, final int page) {
+
+        final NavigableMap<Integer, Object> pages = boundaries.get(shape);
+        return pages == null ? null : pages.floorEntry(Integer.valueOf(page - 1));
+    }
+
+    public static synchronized void put(final String shape, final int page, final Object lastKey) {
+
+        NavigableMap<Integer, Object> pages = boundaries.get(shape);
+        if (pages == null) {
+            pages = new TreeMap<Integer, Object>();
+            boundaries.put(shape, pages);
+        }
+        pages.put(Integer.valueOf(page), lastKey);
+        if (pages.size() > MAX_PAGES) {
+            // Readers paging forward keep the most recent pages
+            if (pages.lastKey().intValue() == page) {
+                pages.pollFirstEntry();
+            } else {
+                pages.pollLastEntry();
+            }
+        }
+    }
+
+}
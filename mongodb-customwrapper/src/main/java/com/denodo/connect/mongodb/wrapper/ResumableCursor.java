@@ -0,0 +1,188 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper;
+
+import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+
+/**
+ * Cursor over the documents matching a query sorted by _id, that survives replica set failovers, cursor
+ * timeouts and network errors: the query is executed again from the last document read ($gt its _id), so no
+ * document is repeated or missed. Other errors, and retryable ones once the resumes are exhausted, are thrown.
+ */
+public final class ResumableCursor implements MongoCursor<Document> {
+
+    private static final Logger logger = Logger.getLogger(ResumableCursor.class);
+
+    private static final String MONGODB_ID_FIELD = "_id";
+
+    private final MongoDBClient client;
+    private final Bson query;
+    private final Bson projection;
+    private final Collation collation;
+    private final int maxResumes;
+
+    // The cursor can be closed by another thread, to stop the query
+    private volatile MongoCursor<Document> cursor;
+    private volatile boolean closed;
+    private Object lastId;
+    private int resumes;
+
+
+    public ResumableCursor(final MongoDBClient client, final Bson query, final Bson projection,
+            final Collation collation, final int maxResumes) {
+
+        this.client = client;
+        this.query = query;
+        this.projection = projection;
+        this.collation = collation;
+        this.maxResumes = maxResumes;
+        this.cursor = open();
+    }
+
+    /**
+     * Number of times the query has been resumed.
+     */
+    public int getResumes() {
+        return this.resumes;
+    }
+
+    @Override
+    public boolean hasNext() {
+
+        while (true) {
+            try {
+                return this.cursor.hasNext();
+            } catch (final MongoException e) {
+                resume(e);
+            }
+        }
+    }
+
+    @Override
+    public Document next() {
+
+        while (true) {
+            try {
+                return read(this.cursor.next());
+            } catch (final MongoException e) {
+                resume(e);
+            }
+        }
+    }
+
+    @Override
+    public Document tryNext() {
+
+        while (true) {
+            try {
+                return read(this.cursor.tryNext());
+            } catch (final MongoException e) {
+                resume(e);
+            }
+        }
+    }
+
+    @Override
+    public ServerCursor getServerCursor() {
+        return this.cursor.getServerCursor();
+    }
+
+    @Override
+    public ServerAddress getServerAddress() {
+        return this.cursor.getServerAddress();
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.cursor.close();
+    }
+
+    private Document read(final Document document) {
+
+        if (document != null) {
+            this.lastId = document.get(MONGODB_ID_FIELD);
+        }
+        return document;
+    }
+
+    private MongoCursor<Document> open() {
+
+        // The projection never excludes _id
+        final Bson resumeQuery = (this.lastId == null) ? this.query : Filters.and(this.query, Filters.gt(MONGODB_ID_FIELD, this.lastId));
+        return this.client.query(resumeQuery, Sorts.ascending(MONGODB_ID_FIELD), this.projection, this.collation).iterator();
+    }
+
+    private void resume(final MongoException e) {
+
+        try {
+            this.cursor.close();
+        } catch (final MongoException closeException) {
+            // The cursor is usually already dead
+            logger.debug("Error closing the failed cursor: " + closeException.getMessage());
+        }
+
+        MongoException error = e;
+        while (!this.closed && isRetryable(error) && this.resumes < this.maxResumes) {
+            this.resumes++;
+            logger.warn("Resuming MongoDB query after _id " + this.lastId + " (" + this.resumes + " of "
+                + this.maxResumes + "): " + error.getMessage());
+            try {
+                this.cursor = open();
+                if (this.closed) {
+                    // Closed while resuming
+                    this.cursor.close();
+                }
+                return;
+            } catch (final MongoException openException) {
+                // Usually the new primary has not been elected yet
+                error = openException;
+            }
+        }
+        throw error;
+    }
+
+    private static boolean isRetryable(final MongoException e) {
+
+        return e instanceof MongoSocketException
+            || e instanceof MongoTimeoutException
+            || e instanceof MongoNotPrimaryException
+            || e instanceof MongoNodeIsRecoveringException
+            || e instanceof MongoCursorNotFoundException;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonWriterSettings;
+
+import com.denodo.connect.mongodb.wrapper.util.LocalStoreUtils;
+
+
+/**
+ * Stores in local disk the high-water marks of incremental extractions: the greatest value of the watermark
+ * field among the documents already returned to a consumer of a view, and the greatest _id among the
+ * returned documents with that value, so documents with the same value are not skipped.
+ *
+ * Every mark is a JSON file named after a hash of its key, in extended JSON so the type of the value
+ * (ObjectId, Date, Long...) is preserved for the next extraction.
+ */
+public final class WatermarkStore {
+
+    private static final Logger logger = Logger.getLogger(WatermarkStore.class);
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String VERSION = "version";
+    private static final String KEY = "key";
+    private static final String UPDATED = "updated";
+    private static final String WATERMARK = "watermark";
+
+    // Fields of the marks
+    public static final String VALUE = "value";
+    public static final String ID = "_id";
+
+    private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+
+    // Suppress default constructor for noninstantiability
+    private WatermarkStore() {
+
+    }
+
+    /**
+     * Returns the mark stored for the key or null if there is none, so every document is extracted.
+     * Unlike a cache miss, an unreadable mark is an error: extracting everything again is not expected.
+     */
+    public static Document get(final File directory, final String key) throws IOException {
+
+        final File file = LocalStoreUtils.getFile(directory, key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            final Document entry = Document.parse(LocalStoreUtils.read(file));
+            if (entry.getInteger(VERSION, 0) != FORMAT_VERSION || !key.equals(entry.getString(KEY))) {
+                throw new IOException("Invalid watermark: " + file);
+            }
+            return (Document) entry.get(WATERMARK);
+        } catch (final JsonParseException | ClassCastException e) {
+            throw new IOException("Invalid watermark: " + file, e);
+        }
+    }
+
+    public static void put(final File directory, final String key, final Object value, final Object id)
+            throws IOException {
+
+        final Document watermark = new Document(VALUE, value).append(ID, id);
+        final Document entry = new Document(VERSION, Integer.valueOf(FORMAT_VERSION))
+            .append(KEY, key)
+            .append(UPDATED, Long.valueOf(System.currentTimeMillis()))
+            .append(WATERMARK, watermark);
+
+        final File file = LocalStoreUtils.getFile(directory, key);
+        LocalStoreUtils.write(file, entry.toJson(JSON_SETTINGS));
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Stored watermark " + watermark + ": " + file);
+        }
+    }
+
+}
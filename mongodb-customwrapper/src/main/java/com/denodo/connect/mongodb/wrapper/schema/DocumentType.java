@@ -42,6 +42,10 @@ public Collection<Type> getTypes() {
         return this.fields.values();
     }
 
+    public Type getType(String name) {
+        return this.fields.get(name);
+    }
+
     /**
      * The type of a document is the result of the merge (highest common denominator)
      * of its subfields type.
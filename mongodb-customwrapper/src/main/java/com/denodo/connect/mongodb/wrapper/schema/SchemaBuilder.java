@@ -22,9 +22,16 @@
 package com.denodo.connect.mongodb.wrapper.schema;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import com.denodo.connect.mongodb.wrapper.util.SchemaInferenceUtils;
+import com.denodo.connect.mongodb.wrapper.util.TypeUtils;
 import com.denodo.vdb.engine.customwrapper.CustomWrapperSchemaParameter;
 import org.bson.Document;
 
@@ -40,11 +47,28 @@ public class SchemaBuilder {
     public static final String ARRAY_ITEM_SUFFIX = "_ITEM";
     private static final Class<String> DEFAULT_CLASS = String.class;
 
+    private static final String GEOJSON_TYPE_FIELD = "type";
+    private static final String GEOJSON_COORDINATES_FIELD = "coordinates";
+    private static final Set<String> GEOJSON_TYPES = new HashSet<String>(Arrays.asList("Point", "LineString",
+        "Polygon", "MultiPoint", "MultiLineString", "MultiPolygon"));
+
     private DocumentType type;
 
+    // Top level fields only seen as empty subdocuments or arrays when inferring the schema at the server side
+    private Set<String> emptyContainerFields;
+
 
     public SchemaBuilder() {
-        this.type = new DocumentType("Schema");
+        this(new DocumentType("Schema"));
+    }
+
+    SchemaBuilder(DocumentType type) {
+        this.type = type;
+        this.emptyContainerFields = new LinkedHashSet<String>();
+    }
+
+    DocumentType getType() {
+        return this.type;
     }
 
     public void addToSchema(Document document) {
@@ -61,13 +85,49 @@ public void addToSchema(Document document) {
             }
             if (!typeFound) {
                 // Types can be null, but they need to be added anyway
-                this.type.add(new SimpleType(key, DEFAULT_CLASS));
+                this.type.add((field == null) ? SimpleType.undefined(key) : new SimpleType(key, DEFAULT_CLASS));
             }
         }
     }
 
+    /**
+     * Adds a (path, BSON type) pair as returned by the server side inference pipeline. The path
+     * segments are field names or {@link SchemaInferenceUtils#ARRAY_ITEM_SEGMENT} for array items.
+     *
+     * Subdocuments and arrays are built from the pairs of their contents, so pairs whose type is a
+     * subdocument or an array do not add anything by themselves.
+     */
+    public void addToSchema(List<?> path, String bsonType) {
+
+        String key = (String) path.get(0);
+        Type fieldType = getPathType(key, path, 1, bsonType);
+        if (fieldType != null) {
+            this.type.add(fieldType);
+        } else if (path.size() == 1) {
+            this.emptyContainerFields.add(key);
+        }
+    }
+
+    /**
+     * Merges the schema built by other builder into this one, as if all the documents had been
+     * added to this builder.
+     */
+    public SchemaBuilder merge(SchemaBuilder other) {
+
+        this.type.doMerge(other.type);
+        this.emptyContainerFields.addAll(other.emptyContainerFields);
+        return this;
+    }
+
     public CustomWrapperSchemaParameter[] buildSchema() {
 
+        for (String key : this.emptyContainerFields) {
+            if (this.type.getType(key) == null) {
+                // Types can be empty, but they need to be added anyway
+                this.type.add(new SimpleType(key, DEFAULT_CLASS));
+            }
+        }
+
         Collection<CustomWrapperSchemaParameter> schema = new ArrayList<CustomWrapperSchemaParameter>();
         for (Type t : this.type.getTypes()) {
             schema.add(t.buildSchemaParameter());
@@ -76,6 +136,32 @@ public CustomWrapperSchemaParameter[] buildSchema() {
         return schema.toArray(new CustomWrapperSchemaParameter[schema.size()]);
     }
 
+    private static Type getPathType(String key, List<?> path, int index, String bsonType) {
+
+        if (index == path.size()) {
+            return SchemaInferenceUtils.isContainer(bsonType) ? null : new SimpleType(key, TypeUtils.fromBsonType(bsonType));
+        }
+
+        Object segment = path.get(index);
+        if (SchemaInferenceUtils.ARRAY_ITEM_SEGMENT.equals(segment)) {
+            Type itemType = getPathType(key + ARRAY_ITEM_SUFFIX, path, index + 1, bsonType);
+            if (itemType == null) {
+                return null;
+            }
+            ArrayType arrayType = new ArrayType(key);
+            arrayType.add(itemType);
+            return arrayType;
+        }
+
+        Type subType = getPathType((String) segment, path, index + 1, bsonType);
+        if (subType == null) {
+            return null;
+        }
+        DocumentType documentType = new DocumentType(key);
+        documentType.add(subType);
+        return documentType;
+    }
+
     private Type getFieldType(String key, Object field) {
 
         Type fieldType = null;
@@ -103,8 +189,11 @@ private Type getFieldType(String key, Object field) {
             if(!subDocument.isEmpty()){
                 // if the document is empty it is not possible to represent in VDP
                 boolean isEmpty = true;
+                boolean geoJSON = isGeoJSON(subDocument);
                 for (Map.Entry<String, Object> entry : subDocument.entrySet()) {
-                    final Type entryType = getFieldType(entry.getKey(), entry.getValue());
+                    final Type entryType = (geoJSON && GEOJSON_COORDINATES_FIELD.equals(entry.getKey()))
+                        ? getCoordinatesType(entry.getKey(), entry.getValue())
+                        : getFieldType(entry.getKey(), entry.getValue());
                     if (entryType != null) {
                         documentType.add(entryType);
                         isEmpty = false;
@@ -119,11 +208,40 @@ private Type getFieldType(String key, Object field) {
             if(field!= null){
                 fieldType = new SimpleType(key, field.getClass());
             } else {
-                fieldType = new SimpleType(key, DEFAULT_CLASS);
+                fieldType = SimpleType.undefined(key);
             }
         }
 
         return fieldType;
     }
 
+    /*
+     * GeoJSON objects ({ type: 'Point', coordinates: [ -3.7, 40 ] }) are STRUCTs whose coordinates are always
+     * DOUBLE, even if the positions of the sampled documents were integers, so that all the geometries of
+     * the same type have the same STRUCT.
+     */
+    private static boolean isGeoJSON(Document document) {
+        return GEOJSON_TYPES.contains(document.get(GEOJSON_TYPE_FIELD))
+            && document.get(GEOJSON_COORDINATES_FIELD) instanceof List;
+    }
+
+    private static Type getCoordinatesType(String key, Object coordinates) {
+
+        if (!(coordinates instanceof List)) {
+            return (coordinates instanceof Number) ? new SimpleType(key, Double.class) : null;
+        }
+
+        ArrayType arrayType = new ArrayType(key);
+        boolean isEmpty = true;
+        for (Object item : (List<?>) coordinates) {
+            Type itemType = getCoordinatesType(key + ARRAY_ITEM_SUFFIX, item);
+            if (itemType != null) {
+                arrayType.add(itemType);
+                isEmpty = false;
+            }
+        }
+
+        return isEmpty ? null : arrayType;
+    }
+
 }
@@ -0,0 +1,96 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper.schema;
+
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+import org.bson.Document;
+
+
+/**
+ * Builds a schema from a list of cursors, typically disjoint partitions of the same query.
+ *
+ * The list is split in halves until only one cursor remains, every cursor is consumed into its own
+ * partial {@link SchemaBuilder} and the partial results are merged when the halves are joined. As
+ * merging types is associative, the result does not depend on how the list is split.
+ *
+ * The maximum number of documents and the deadline are shared by all the cursors.
+ */
+public class SchemaBuilderTask extends RecursiveTask<SchemaBuilder> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<? extends MongoIterable<Document>> cursors;
+    private final AtomicLong analyzed;
+    private final long documentLimit;
+    private final long deadline;
+
+
+    public SchemaBuilderTask(List<? extends MongoIterable<Document>> cursors, AtomicLong analyzed,
+            long documentLimit, long deadline) {
+        this.cursors = cursors;
+        this.analyzed = analyzed;
+        this.documentLimit = documentLimit;
+        this.deadline = deadline;
+    }
+
+    @Override
+    protected SchemaBuilder compute() {
+
+        if (this.cursors.size() == 1) {
+            return consume(this.cursors.get(0));
+        }
+
+        int middle = this.cursors.size() / 2;
+        SchemaBuilderTask left = new SchemaBuilderTask(this.cursors.subList(0, middle),
+            this.analyzed, this.documentLimit, this.deadline);
+        SchemaBuilderTask right = new SchemaBuilderTask(this.cursors.subList(middle, this.cursors.size()),
+            this.analyzed, this.documentLimit, this.deadline);
+
+        left.fork();
+        SchemaBuilder rightBuilder = right.compute();
+        return left.join().merge(rightBuilder);
+    }
+
+    private SchemaBuilder consume(MongoIterable<Document> cursor) {
+
+        SchemaBuilder builder = new SchemaBuilder();
+        MongoCursor<Document> iterator = cursor.iterator();
+        try {
+            while (System.currentTimeMillis() < this.deadline && iterator.hasNext()) {
+                if (this.analyzed.incrementAndGet() > this.documentLimit) {
+                    break;
+                }
+                builder.addToSchema(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+
+        return builder;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper.schema;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+
+import com.denodo.connect.mongodb.wrapper.util.LocalStoreUtils;
+import com.denodo.connect.mongodb.wrapper.util.TypeUtils;
+
+
+/**
+ * Stores inferred schemas in local disk so introspection is not repeated every time a base view is
+ * (re)created with the same settings.
+ *
+ * Every entry is a JSON file named after a hash of its key. The entry holds the key itself, the
+ * generation stamp (the time the schema was inferred) and the merged type of the documents, and it
+ * is reused until its TTL expires.
+ */
+public final class SchemaCache {
+
+    private static final Logger logger = Logger.getLogger(SchemaCache.class);
+
+    // Entries written with a different format version are ignored
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String VERSION = "version";
+    private static final String KEY = "key";
+    private static final String GENERATION = "generation";
+    private static final String SCHEMA = "schema";
+
+    private static final String NAME = "name";
+    private static final String KIND = "kind";
+    private static final String JAVA_CLASS = "class";
+    private static final String FIELDS = "fields";
+    private static final String ELEMENT = "element";
+
+    private static final String KIND_DOCUMENT = "document";
+    private static final String KIND_ARRAY = "array";
+    private static final String KIND_SIMPLE = "simple";
+
+
+    // Suppress default constructor for noninstantiability
+    private SchemaCache() {
+
+    }
+
+    /**
+     * Returns the cached schema for the key or null if there is none or it is older than the TTL.
+     */
+    public static SchemaBuilder get(File directory, String key, long ttlMillis) {
+
+        File file = LocalStoreUtils.getFile(directory, key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            Document entry = Document.parse(LocalStoreUtils.read(file));
+            if (entry.getInteger(VERSION, 0) != FORMAT_VERSION || !key.equals(entry.getString(KEY))) {
+                return null;
+            }
+
+            long age = System.currentTimeMillis() - ((Number) entry.get(GENERATION)).longValue();
+            if (age > ttlMillis) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Cached schema expired (" + age + " ms old): " + file);
+                }
+                return null;
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Using cached schema (" + age + " ms old): " + file);
+            }
+            return new SchemaBuilder((DocumentType) fromDocument((Document) entry.get(SCHEMA)));
+
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            // A corrupt or unreadable entry is just a cache miss
+            logger.warn("Unable to read cached schema: " + file, e);
+            return null;
+        }
+    }
+
+    public static void put(File directory, String key, SchemaBuilder builder) {
+
+        Document entry = new Document(VERSION, Integer.valueOf(FORMAT_VERSION))
+            .append(KEY, key)
+            .append(GENERATION, Long.valueOf(System.currentTimeMillis()))
+            .append(SCHEMA, toDocument(builder.getType()));
+
+        File file = LocalStoreUtils.getFile(directory, key);
+        try {
+            LocalStoreUtils.write(file, entry.toJson());
+        } catch (IOException e) {
+            logger.warn("Unable to cache schema: " + file, e);
+        }
+    }
+
+    private static Document toDocument(Type type) {
+
+        Document document = new Document(NAME, type.getName());
+        if (type instanceof DocumentType) {
+            List<Document> fields = new ArrayList<Document>();
+            for (Type field : ((DocumentType) type).getTypes()) {
+                fields.add(toDocument(field));
+            }
+            document.append(KIND, KIND_DOCUMENT).append(FIELDS, fields);
+        } else if (type instanceof ArrayType) {
+            document.append(KIND, KIND_ARRAY).append(ELEMENT, toDocument(((ArrayType) type).getElementType()));
+        } else {
+            document.append(KIND, KIND_SIMPLE).append(JAVA_CLASS, ((SimpleType) type).getJavaClass().getName());
+        }
+
+        return document;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Type fromDocument(Document document) throws ClassNotFoundException {
+
+        String name = document.getString(NAME);
+        String kind = document.getString(KIND);
+        if (KIND_DOCUMENT.equals(kind)) {
+            DocumentType documentType = new DocumentType(name);
+            for (Document field : (List<Document>) document.get(FIELDS)) {
+                documentType.add(fromDocument(field));
+            }
+            return documentType;
+        } else if (KIND_ARRAY.equals(kind)) {
+            ArrayType arrayType = new ArrayType(name);
+            arrayType.add(fromDocument((Document) document.get(ELEMENT)));
+            return arrayType;
+        }
+
+        // Only the classes of the BSON types are loaded, never a class named by the file
+        String className = document.getString(JAVA_CLASS);
+        Class<?> javaClass = TypeUtils.getSupportedClass(className);
+        if (javaClass == null) {
+            throw new ClassNotFoundException("Unsupported class in cached schema: " + className);
+        }
+        return new SimpleType(name, javaClass);
+    }
+
+}
@@ -21,17 +21,31 @@
  */
 package com.denodo.connect.mongodb.wrapper.schema;
 
-import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
 
 import com.denodo.connect.mongodb.wrapper.util.TypeUtils;
 import com.denodo.vdb.engine.customwrapper.CustomWrapperSchemaParameter;
 import org.bson.BsonTimestamp;
+import org.bson.types.Decimal128;
 
 
 public class SimpleType extends Type {
 
     private static final Class<Object> GENERIC_CLASS = Object.class;
     private static final Class<String> DEFAULT_CLASS = String.class;
+    private static final Class<Void> UNDEFINED_CLASS = Void.class;
+
+    /*
+     * Widening chains: two types of the same chain are merged into the wider one.
+     *
+     * BSON Dates and BSON Timestamps are both TIMESTAMP in VDP, a field holding both is handled as a
+     * BSON Timestamp, the one with the lower precision.
+     */
+    private static final List<Class<?>> NUMERIC_WIDENING =
+        Arrays.<Class<?>>asList(Integer.class, Long.class, Double.class, Decimal128.class);
+    private static final List<Class<?>> TEMPORAL_WIDENING =
+        Arrays.<Class<?>>asList(java.util.Date.class, BsonTimestamp.class);
 
     private Class<?> javaClass;
 
@@ -45,6 +59,19 @@ public static SimpleType generic(String name) {
         return new SimpleType(name, GENERIC_CLASS);
     }
 
+    /**
+     * Type of a field whose value is null. It does not reveal anything about the field
+     * so it is replaced by any other type it is merged with.
+     */
+    public static SimpleType undefined(String name) {
+        return new SimpleType(name, UNDEFINED_CLASS);
+    }
+
+    @Override
+    public boolean isUndefined() {
+        return UNDEFINED_CLASS.equals(this.javaClass);
+    }
+
     public Class<?> getJavaClass() {
         return this.javaClass;
     }
@@ -54,8 +81,13 @@ public void setJavaClass(Class<?> javaClass) {
     }
 
     /**
-     * If the two types are not equal but both are SimpleTypes the result is a
-     * SimpleType of String.class.
+     * If the two types are not equal but both are SimpleTypes the result is the
+     * narrowest type both can be widened to: Integer, Long, Double and Decimal128
+     * widen in that order and BSON Dates widen to BSON Timestamps. The generic type
+     * absorbs any other type and any other mismatch results in a SimpleType of String.class.
+     *
+     * These rules form a lattice, so the result of merging several types does not
+     * depend on the order in which they are merged.
      */
     @Override
     public Type doMerge(Type type) {
@@ -63,10 +95,44 @@ public Type doMerge(Type type) {
         if (!(type instanceof SimpleType)) {
             throw new IllegalArgumentException("Incompatible types");
         }
-        setJavaClass(DEFAULT_CLASS);
+        setJavaClass(widen(getJavaClass(), ((SimpleType) type).getJavaClass()));
         return this;
     }
 
+    private static Class<?> widen(Class<?> first, Class<?> second) {
+
+        if (first.equals(second)) {
+            return first;
+        }
+        if (GENERIC_CLASS.equals(first) || GENERIC_CLASS.equals(second)) {
+            return GENERIC_CLASS;
+        }
+        if (UNDEFINED_CLASS.equals(first)) {
+            return second;
+        }
+        if (UNDEFINED_CLASS.equals(second)) {
+            return first;
+        }
+
+        Class<?> widened = widen(NUMERIC_WIDENING, first, second);
+        if (widened == null) {
+            widened = widen(TEMPORAL_WIDENING, first, second);
+        }
+
+        return (widened != null) ? widened : DEFAULT_CLASS;
+    }
+
+    private static Class<?> widen(List<Class<?>> chain, Class<?> first, Class<?> second) {
+
+        int firstIndex = chain.indexOf(first);
+        int secondIndex = chain.indexOf(second);
+        if (firstIndex < 0 || secondIndex < 0) {
+            return null;
+        }
+
+        return chain.get(Math.max(firstIndex, secondIndex));
+    }
+
     @Override
     public int getSQLType() {
         return TypeUtils.toSQL(getJavaClass());
@@ -112,37 +178,4 @@ public String toString() {
         return "name:" + getName() + ", javaClass:" + this.javaClass.getSimpleName();
     }
 
-    /**
-     * Transforms this type to a parameter of the Custom Wrapper's schema.
-     * The SQL type and the subschema may vary depending on the concrete type.
-     */
-    @Override
-    public CustomWrapperSchemaParameter buildSchemaParameter() {
-
-        boolean searchable = true;
-        boolean updateable = true;
-        boolean nullable = true;
-        boolean mandatory = true;
-
-        int sqlType = getSQLType();
-        CustomWrapperSchemaParameter[] subSchema = getSubSchema();
-        
-        //  BSON Timestamp fields are supported but are not allowed to be present in WHERE clauses. 
-        // The reason is, due to the impossibility to differentiate them from the normal BSON Date type, 
-        // BSON Timestamp have no way of being adequately represented in the query documents. 
-        // We make BSON Timestamps "not-searchables" so they can be filtered at the VDP side
-        if (Types.TIMESTAMP == sqlType && this.getJavaClass().equals(BsonTimestamp.class)) {
-        	return new CustomWrapperSchemaParameter(getName(), sqlType,
-                    subSchema, false, CustomWrapperSchemaParameter.ASC_AND_DESC_SORT,
-                    updateable, nullable, !mandatory);
-        } else if (sqlType != Types.ARRAY && sqlType!= Types.STRUCT) {
-            return new CustomWrapperSchemaParameter(getName(), sqlType,
-                    subSchema, searchable, CustomWrapperSchemaParameter.ASC_AND_DESC_SORT,
-                    updateable, nullable, !mandatory);
-        } 
-        return new CustomWrapperSchemaParameter(getName(), sqlType,
-            subSchema, searchable, CustomWrapperSchemaParameter.ASC_AND_DESC_SORT,
-            !updateable, nullable, !mandatory);
-    }
-
 }
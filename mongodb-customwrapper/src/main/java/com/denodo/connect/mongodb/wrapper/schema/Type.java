@@ -50,15 +50,19 @@ public void setName(String name) {
      * all the fields with the same name.
      *
      * If the two types are equal no merged is needed.
+     * If one of them is undefined (the field was null) the result is the other one.
      * If the two types are not equal but both are of the same type specific merge is required.
      * Otherwise the two types are incompatible and the resulting type is a
      * generic type: SimpleType of Object.class. VDP handles it as text.
      */
     public Type merge(Type type) {
 
-        if (type == null || equals(type)) {
+        if (type == null || equals(type) || type.isUndefined()) {
             return this;
         }
+        if (isUndefined()) {
+            return type;
+        }
 
         Type merged = null;
         try {
@@ -95,6 +99,13 @@ public CustomWrapperSchemaParameter buildSchemaParameter() {
             !updateable, nullable, !mandatory);
     }
 
+    /**
+     * Undefined types are the types of null values.
+     */
+    public boolean isUndefined() {
+        return false;
+    }
+
     /**
      * Call when two types are both of the same type but they are not identical.
      */
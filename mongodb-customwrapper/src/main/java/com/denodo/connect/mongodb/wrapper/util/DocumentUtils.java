@@ -59,12 +59,12 @@ public static Document buildMongoDocument(
             }
 
             // As of Denodo 6.0u08, fieldValue will never be a java.sql.Timestamp (all fields of type Date,
-            // whatever the subtype, are provided as java.util.Date). Also, we have no way to establish the difference
-            // between a Date that was a BSON TIMESTAMP at MongoDB and a Date that was a BSON DATE at MongoDB, so
-            // we will only use DATE and assume as limitation the fact that no queries can be performed with filters
-            // on fields of type BSON TIMESTAMP.
+            // whatever the subtype, are provided as java.util.Date). Also, the schema is not available for
+            // inserts and updates, so we have no way to establish whether a Date has to be stored as a
+            // BSON TIMESTAMP or as a BSON DATE: values are always stored as BSON DATE. Queries, which do
+            // receive the schema, match both types (see QueryUtils).
 
-            doc.append(fieldName, fieldValue);
+            doc.append(fieldName, TypeUtils.toBsonValue(fieldValue));
 
         }
 
@@ -0,0 +1,131 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+
+
+/**
+ * Aggregation pipelines used as the source of a view.
+ *
+ * The conditions delegated by VDP are over the documents of the view, the output of the pipeline, so in
+ * general they have to be applied after it. Those over fields that the pipeline does not change can also
+ * be applied before it, where they can use the indexes of the collection. This is only the case while the
+ * pipeline does not aggregate, reshape or count documents: filtering before a $group, a $project or a
+ * $limit would change its output.
+ */
+public final class PipelineUtils {
+
+    /*
+     * Stages that neither change the fields of the documents nor depend on which documents reach them.
+     */
+    private static final Set<String> FILTER_STAGES = new HashSet<String>(Arrays.asList("$match", "$sort"));
+
+    /*
+     * Stages that write documents, not allowed in the pipeline of a view.
+     */
+    private static final Set<String> OUTPUT_STAGES = new HashSet<String>(Arrays.asList("$out", "$merge"));
+
+
+    private PipelineUtils() {
+    }
+
+    /**
+     * Parses a JSON array of stages, e.g.: [ { $match: { status: 'A' } }, { $group: { _id: '$cust_id' } } ]
+     */
+    public static List<Document> parsePipeline(String jsonPipeline) {
+
+        final Object stages;
+        try {
+            stages = Document.parse("{ pipeline: " + jsonPipeline + " }").get("pipeline");
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid pipeline syntax", e);
+        }
+        if (!(stages instanceof List)) {
+            throw new IllegalArgumentException("The pipeline must be an array of stages");
+        }
+
+        final List<Document> pipeline = new ArrayList<Document>();
+        for (Object stage : (List<?>) stages) {
+            if (!(stage instanceof Document) || ((Document) stage).size() != 1) {
+                throw new IllegalArgumentException("Invalid pipeline stage: " + stage);
+            }
+            String name = ((Document) stage).keySet().iterator().next();
+            if (OUTPUT_STAGES.contains(name)) {
+                throw new IllegalArgumentException(name + " stages are not allowed in the pipeline");
+            }
+            pipeline.add((Document) stage);
+        }
+
+        return pipeline;
+    }
+
+    /**
+     * Top level fields that the pipeline adds or changes, or null if conditions over any field have to be
+     * applied after the pipeline.
+     */
+    public static Set<String> getChangedFields(List<Document> pipeline) {
+
+        final Set<String> fields = new HashSet<String>();
+        for (Document stage : pipeline) {
+            final String name = stage.keySet().iterator().next();
+            final Object definition = stage.get(name);
+            if (FILTER_STAGES.contains(name)) {
+                continue;
+            } else if (("$addFields".equals(name) || "$set".equals(name)) && definition instanceof Document) {
+                for (String field : ((Document) definition).keySet()) {
+                    fields.add(getTopLevelField(field));
+                }
+            } else if ("$unset".equals(name)) {
+                for (Object field : (definition instanceof List) ? (List<?>) definition : Arrays.asList(definition)) {
+                    fields.add(getTopLevelField(String.valueOf(field)));
+                }
+            } else if ("$lookup".equals(name) && definition instanceof Document) {
+                fields.add(getTopLevelField(((Document) definition).getString("as")));
+            } else if ("$unwind".equals(name)) {
+                // the documents are repeated, but conditions over other fields select the same ones
+                final Object path = (definition instanceof Document) ? ((Document) definition).get("path") : definition;
+                fields.add(getTopLevelField(String.valueOf(path).substring(1)));
+                if (definition instanceof Document && ((Document) definition).containsKey("includeArrayIndex")) {
+                    fields.add(getTopLevelField(((Document) definition).getString("includeArrayIndex")));
+                }
+            } else {
+                return null;
+            }
+        }
+
+        return fields;
+    }
+
+    private static String getTopLevelField(String path) {
+        final int index = path.indexOf('.');
+        return (index < 0) ? path : path.substring(0, index);
+    }
+
+}
@@ -21,12 +21,22 @@
  */
 package com.denodo.connect.mongodb.wrapper.util;
 
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.denodo.connect.mongodb.wrapper.schema.SchemaBuilder;
 import com.denodo.vdb.engine.customwrapper.CustomWrapperOrderByExpression;
@@ -34,16 +44,22 @@
 import com.denodo.vdb.engine.customwrapper.CustomWrapperSchemaParameter;
 import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperAndCondition;
 import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition;
+import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperNotCondition;
 import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperOrCondition;
 import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperSimpleCondition;
 import com.denodo.vdb.engine.customwrapper.expression.CustomWrapperExpression;
 import com.denodo.vdb.engine.customwrapper.expression.CustomWrapperFieldExpression;
+import com.denodo.vdb.engine.customwrapper.expression.CustomWrapperFunctionExpression;
 import com.denodo.vdb.engine.customwrapper.expression.CustomWrapperSimpleExpression;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
 import com.mongodb.client.model.Filters;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_CONTAINS;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_EQ;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_GE;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_GT;
@@ -58,12 +74,21 @@
 
 public final class QueryUtils {
 
+    public static final String GEO_WITHIN = "WITHIN";
+    public static final String GEO_INTERSECTS = "INTERSECTS";
+    public static final String GEO_NEAR = "NEAR";
+
     private static final String MONGODB_ID_FIELD = "_id";
 
 
 
     private static final Map<String, String> MONGODB_OPERATORS = getOperatorMappings();
     private static final Map<ORDER, Integer> MONGODB_ORDERS = getOrderMappings();
+    private static final Map<String, String> MONGODB_EXPRESSION_OPERATORS = getExpressionOperatorMappings();
+    private static final Map<String, String> NEGATED_OPERATORS = getNegatedOperators();
+    private static final Map<String, String> MONGODB_FUNCTIONS = getFunctionMappings();
+    private static final Set<String> UNWIND_OPERATORS = new HashSet<String>(Arrays.asList(
+        OPERATOR_EQ, OPERATOR_LT, OPERATOR_LE, OPERATOR_GT, OPERATOR_GE, OPERATOR_IN, OPERATOR_LIKE));
 
     private static final String START_OF_LINE = "^";
     private static final String END_OF_LINE = "$";
@@ -72,6 +97,10 @@ public final class QueryUtils {
     private static final String SQL_ZERO_MORE_CHAR = "%";
     private static final String MONGODB_ZERO_MORE_CHAR = "*";
     private static final String ESCAPE_CHAR = "\\";
+    private static final String COLLATION_MAX_CHAR = "\uFFFF";
+
+    // Terms, "quoted phrases" and -negated terms of a search string
+    private static final Pattern SEARCH_TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
 
 
     private QueryUtils() {
@@ -97,6 +126,69 @@ private static Map<String, String> getOperatorMappings() {
         return map;
     }
 
+    /*
+     * Mappings between VDP operators and MongoDB comparison expression operators, used when the
+     * right side of a condition is not a literal.
+     */
+    private static Map<String, String> getExpressionOperatorMappings() {
+
+        Map<String, String> map = new HashMap<String, String>();
+        map.put(OPERATOR_EQ, "$eq");
+        map.put(OPERATOR_NE, "$ne");
+        map.put(OPERATOR_LT, "$lt");
+        map.put(OPERATOR_LE, "$lte");
+        map.put(OPERATOR_GT, "$gt");
+        map.put(OPERATOR_GE, "$gte");
+
+        return map;
+    }
+
+    private static Map<String, String> getNegatedOperators() {
+
+        Map<String, String> map = new HashMap<String, String>();
+        map.put(OPERATOR_EQ, OPERATOR_NE);
+        map.put(OPERATOR_NE, OPERATOR_EQ);
+        map.put(OPERATOR_LT, OPERATOR_GE);
+        map.put(OPERATOR_LE, OPERATOR_GT);
+        map.put(OPERATOR_GT, OPERATOR_LE);
+        map.put(OPERATOR_GE, OPERATOR_LT);
+
+        return map;
+    }
+
+    /*
+     * Mappings between the VDP functions that can be part of the right side of a condition and
+     * MongoDB aggregation expression operators. Their parameters are passed in the same order.
+     */
+    private static Map<String, String> getFunctionMappings() {
+
+        Map<String, String> map = new HashMap<String, String>();
+        // arithmetic functions ('+', '-', '*', '/' and '%' are SUM, SUBTRACT, MULT, DIV and MOD)
+        map.put("SUM", "$add");
+        map.put("SUBTRACT", "$subtract");
+        map.put("MULT", "$multiply");
+        map.put("DIV", "$divide");
+        map.put("MOD", "$mod");
+        map.put("ABS", "$abs");
+        map.put("CEIL", "$ceil");
+        map.put("FLOOR", "$floor");
+        map.put("POWER", "$pow");
+        map.put("SQRT", "$sqrt");
+        // text functions
+        map.put("LOWER", "$toLower");
+        map.put("UPPER", "$toUpper");
+        map.put("CONCAT", "$concat");
+
+        return map;
+    }
+
+    /**
+     * Names of the VDP functions that can be part of the right side of a condition.
+     */
+    public static Set<String> getSupportedFunctions() {
+        return Collections.unmodifiableSet(MONGODB_FUNCTIONS.keySet());
+    }
+
     /*
      * Mappings between VDP and MongoDB sort values.
      */
@@ -111,6 +203,15 @@ private static Map<ORDER, Integer> getOrderMappings() {
 
 
     public static Bson buildQuery(CustomWrapperSchemaParameter[] schema, CustomWrapperCondition vdpCondition) {
+        return buildQuery(schema, vdpCondition, null);
+    }
+
+    /*
+     * The collation, when not null, is the one the query is executed with. String comparisons follow it, but
+     * $regex does not, so LIKE conditions are translated accordingly.
+     */
+    public static Bson buildQuery(CustomWrapperSchemaParameter[] schema, CustomWrapperCondition vdpCondition,
+            Collation collation) {
 
         // Note that the schema CAN BE NULL, as we will only have it in run() executions (queries), but not in
         // updates, inserts or deletes due to a restriction in the Custom Wrapper API.
@@ -120,22 +221,12 @@ public static Bson buildQuery(CustomWrapperSchemaParameter[] schema, CustomWrapp
         if (vdpCondition != null) {
 
             if (vdpCondition.isAndCondition()) {
-
-                CustomWrapperAndCondition andCondition = (CustomWrapperAndCondition) vdpCondition;
-                for (CustomWrapperCondition condition : andCondition.getConditions()) {
-                    Bson andQuery =  buildQuery(schema, condition);
-                   
-                    if(query==null){
-                        query=Filters.and(andQuery);
-                    }else{
-                        query=Filters.and(query,andQuery);  
-                    }
-                }
+                query = buildQuery(schema, ((CustomWrapperAndCondition) vdpCondition).getConditions(), collation);
 
             } else if (vdpCondition.isOrCondition()) {
                 CustomWrapperOrCondition orCondition = (CustomWrapperOrCondition) vdpCondition;
                 for (CustomWrapperCondition condition : orCondition.getConditions()) {
-                    Bson orQuery =  buildQuery(schema, condition);
+                    Bson orQuery =  buildQuery(schema, condition, collation);
                     if(query==null){
                         query=Filters.or(orQuery);
                     }else{
@@ -143,54 +234,502 @@ public static Bson buildQuery(CustomWrapperSchemaParameter[] schema, CustomWrapp
                     }
                 }
 
+            } else if (vdpCondition.isNotCondition()) {
+                query = buildNegatedQuery(schema, ((CustomWrapperNotCondition) vdpCondition).getCondition(), collation);
+
             } else {
                 CustomWrapperSimpleCondition simpleCondition = (CustomWrapperSimpleCondition) vdpCondition;
                 CustomWrapperFieldExpression fieldExpression = (CustomWrapperFieldExpression) simpleCondition.getField();
 
-                String field = buildLeftOperand(fieldExpression);
-                String operator = simpleCondition.getOperator();
-                if (OPERATOR_ISNULL.equals(operator) || OPERATOR_ISNOTNULL.equals(operator)) {
-                    query = buildNullCondition((Document)query, field, operator);
-                } else {
-
-                    // Note we are not currently using the schema for anything here, as we are assuming as a limitation
-                    // the fact that we cannot make a difference betwen BSON Date and BSON Timestamp types.
-                    // Receiving the schema here however might be useful in the future in Denodo 7 when we have a richer
-                    // type system and hopefully a set of "original source type" metainformation associated with
-                    // the CustomWrapperSchemaParameter objects.
-
-                    query=new Document();
-
-                    final CustomWrapperExpression[] rightSide = simpleCondition.getRightExpression();
-                    final Object rightSideValue;
-                    if (OPERATOR_IN.equals(operator)) {
-                        // If operator is an IN, we need to take care of all the specified values, and set them into a List
-                        final List<Object> rightSideValues = new ArrayList<Object>();
-                        for (int i = 0; i < rightSide.length; i++) {
-                            rightSideValues.add(((CustomWrapperSimpleExpression)rightSide[i]).getValue());
-                        }
-                        rightSideValue = rightSideValues;
-                    } else {
-                        // Otherwise, just get the first position of the array (there will be only one)
-                        rightSideValue = ((CustomWrapperSimpleExpression)rightSide[0]).getValue();
-                    }
+                query = buildSimpleQuery(schema, simpleCondition, buildLeftOperand(fieldExpression), collation);
+            }
+        }
+        if(query==null){
+            query = new Document();
+        }
+        return query;
+    }
 
-                    addCondition( (Document)query, field, operator, rightSideValue);
 
+    /**
+     * Builds the query of the AND of the conditions. An empty list of conditions selects all documents.
+     */
+    public static Bson buildQuery(CustomWrapperSchemaParameter[] schema, List<CustomWrapperCondition> conditions,
+            Collation collation) {
+        return buildQuery(schema, conditions, null, collation);
+    }
+
+    /**
+     * Builds the query of the AND of the conditions, where the text search condition, one of them, is a
+     * $text search. See {@link #getTextSearchCondition(List)}.
+     */
+    public static Bson buildQuery(CustomWrapperSchemaParameter[] schema, List<CustomWrapperCondition> conditions,
+            CustomWrapperSimpleCondition textSearchCondition, Collation collation) {
+
+        Bson query = null;
+        Map<String, Bson> elemMatches = buildElemMatches(schema, conditions, collation);
+        Set<String> addedElemMatches = new HashSet<String>();
+        for (CustomWrapperCondition condition : conditions) {
+            Bson andQuery;
+            String arrayPrefix = getArrayItemPrefix(condition);
+            if (arrayPrefix != null && elemMatches.containsKey(arrayPrefix)) {
+                if (!addedElemMatches.add(arrayPrefix)) {
+                    continue;
                 }
+                andQuery = elemMatches.get(arrayPrefix);
+            } else if (condition == textSearchCondition) {
+                andQuery = buildTextSearch(((CustomWrapperSimpleExpression) textSearchCondition.getRightExpression()[0]).getValue());
+            } else {
+                andQuery =  buildQuery(schema, condition, collation);
+            }
 
+            if(query==null){
+                query=Filters.and(andQuery);
+            }else{
+                query=Filters.and(query,andQuery);
+            }
+        }
 
+        return (query == null) ? new Document() : query;
+    }
 
+    /**
+     * Builds a query over the documents before an $unwind of the array that selects every document
+     * needed by the conditions over the unwound documents, where the fields of the array elements are
+     * top level fields. A condition over a field is satisfied by an unwound document when either the
+     * document or the array element satisfy it, so it selects the documents with
+     *
+     *   { $or: [ { field: ... }, { array.field: ... } ] }
+     *
+     * which can use the indexes of both fields (a multikey index for the array). Only conditions that an
+     * array satisfies when any of its elements does can be used ('>' but not '<>' or IS NOT NULL), and
+     * only if they do not reference the excluded fields: the fields that the stages before the $unwind
+     * add or change, as the query is applied before those stages.
+     * Returns null if there are none.
+     */
+    public static Bson buildUnwindQuery(CustomWrapperSchemaParameter[] schema, List<CustomWrapperCondition> conditions,
+            String arrayPath, Set<String> excludedFields, Collation collation) {
+
+        List<Bson> queries = new ArrayList<Bson>();
+        for (CustomWrapperCondition condition : conditions) {
+            if (condition.isSimpleCondition() && Collections.disjoint(excludedFields, getReferencedFields(condition))) {
+                CustomWrapperSimpleCondition simpleCondition = (CustomWrapperSimpleCondition) condition;
+                if (UNWIND_OPERATORS.contains(simpleCondition.getOperator()) && !isExpressionCondition(simpleCondition)) {
+                    String field = buildLeftOperand((CustomWrapperFieldExpression) simpleCondition.getField());
+                    queries.add(Filters.or(buildSimpleQuery(schema, simpleCondition, field, collation),
+                        buildSimpleQuery(schema, simpleCondition, arrayPath + "." + field, collation)));
+                }
             }
         }
-        if(query==null){
-            query = new Document();
+
+        return queries.isEmpty() ? null : Filters.and(queries);
+    }
+
+    /**
+     * The conditions whose AND is the condition: the conditions of an AND condition, the condition itself
+     * otherwise, or none if the condition is null.
+     */
+    public static List<CustomWrapperCondition> getConjuncts(CustomWrapperCondition vdpCondition) {
+
+        if (vdpCondition == null) {
+            return new ArrayList<CustomWrapperCondition>();
+        } else if (vdpCondition.isAndCondition()) {
+            return new ArrayList<CustomWrapperCondition>(((CustomWrapperAndCondition) vdpCondition).getConditions());
+        }
+        return new ArrayList<CustomWrapperCondition>(Collections.singletonList(vdpCondition));
+    }
+
+    /**
+     * Names of the top level fields referenced by the condition, on either side of its simple conditions.
+     */
+    public static Set<String> getReferencedFields(CustomWrapperCondition vdpCondition) {
+
+        Set<String> fields = new HashSet<String>();
+        if (vdpCondition.isAndCondition() || vdpCondition.isOrCondition()) {
+            List<CustomWrapperCondition> conditions = vdpCondition.isAndCondition()
+                ? ((CustomWrapperAndCondition) vdpCondition).getConditions()
+                : ((CustomWrapperOrCondition) vdpCondition).getConditions();
+            for (CustomWrapperCondition condition : conditions) {
+                fields.addAll(getReferencedFields(condition));
+            }
+        } else if (vdpCondition.isNotCondition()) {
+            fields.addAll(getReferencedFields(((CustomWrapperNotCondition) vdpCondition).getCondition()));
+        } else {
+            CustomWrapperSimpleCondition simpleCondition = (CustomWrapperSimpleCondition) vdpCondition;
+            addReferencedFields(simpleCondition.getField(), fields);
+            if (simpleCondition.getRightExpression() != null) {
+                for (CustomWrapperExpression expression : simpleCondition.getRightExpression()) {
+                    addReferencedFields(expression, fields);
+                }
+            }
         }
+
+        return fields;
+    }
+
+    private static void addReferencedFields(CustomWrapperExpression expression, Set<String> fields) {
+
+        if (expression instanceof CustomWrapperFieldExpression) {
+            fields.add(((CustomWrapperFieldExpression) expression).getName());
+        } else if (expression instanceof CustomWrapperFunctionExpression) {
+            for (CustomWrapperExpression parameter : ((CustomWrapperFunctionExpression) expression).getParameters()) {
+                addReferencedFields(parameter, fields);
+            }
+        }
+    }
+
+    /*
+     * Negations are pushed down to the simple conditions (De Morgan's laws) so that they follow the SQL
+     * three-valued logic: a negated simple condition over a null or missing field is not satisfied, while a
+     * MongoDB negation ($ne, $nin, $not, $nor) is satisfied by documents that do not have the field.
+     *
+     * VDP expresses NOT IN, NOT LIKE and NOT BETWEEN as the negation of IN, LIKE and the AND of two
+     * range conditions, so they are all translated here.
+     */
+    private static Bson buildNegatedQuery(CustomWrapperSchemaParameter[] schema, CustomWrapperCondition vdpCondition,
+            Collation collation) {
+
+        if (vdpCondition.isNotCondition()) {
+            return buildQuery(schema, ((CustomWrapperNotCondition) vdpCondition).getCondition(), collation);
+        }
+
+        if (vdpCondition.isAndCondition() || vdpCondition.isOrCondition()) {
+            List<CustomWrapperCondition> conditions = vdpCondition.isAndCondition()
+                ? ((CustomWrapperAndCondition) vdpCondition).getConditions()
+                : ((CustomWrapperOrCondition) vdpCondition).getConditions();
+            List<Bson> negatedQueries = new ArrayList<Bson>();
+            for (CustomWrapperCondition condition : conditions) {
+                negatedQueries.add(buildNegatedQuery(schema, condition, collation));
+            }
+            return vdpCondition.isAndCondition() ? Filters.or(negatedQueries) : Filters.and(negatedQueries);
+        }
+
+        CustomWrapperSimpleCondition simpleCondition = (CustomWrapperSimpleCondition) vdpCondition;
+        String field = buildLeftOperand((CustomWrapperFieldExpression) simpleCondition.getField());
+        String operator = simpleCondition.getOperator();
+        if (isExpressionCondition(simpleCondition)) {
+            // The comparison with the opposite operator keeps excluding the null values of every field
+            return buildExpressionQuery((CustomWrapperFieldExpression) simpleCondition.getField(),
+                NEGATED_OPERATORS.get(operator), simpleCondition.getRightExpression()[0]);
+        } else if (OPERATOR_ISNULL.equals(operator)) {
+            return buildNullCondition(null, field, OPERATOR_ISNOTNULL);
+        } else if (OPERATOR_ISNOTNULL.equals(operator)) {
+            return buildNullCondition(null, field, OPERATOR_ISNULL);
+        }
+
+        return negate(buildSimpleQuery(schema, simpleCondition, field, collation), field);
+    }
+
+    /*
+     * Equality and IN conditions become a $nin that also excludes null (and therefore missing) values.
+     * Any other condition becomes a $nor plus a condition that excludes null values.
+     */
+    @SuppressWarnings("unchecked")
+    private static Bson negate(Bson query, String field) {
+
+        if (query instanceof Document && ((Document) query).size() == 1 && ((Document) query).containsKey(field)) {
+            Object condition = ((Document) query).get(field);
+            List<Object> excluded = null;
+            if (!(condition instanceof Document)) {
+                excluded = new ArrayList<Object>(Collections.singletonList(condition));
+            } else if (((Document) condition).size() == 1 && ((Document) condition).containsKey("$in")) {
+                excluded = new ArrayList<Object>((List<Object>) ((Document) condition).get("$in"));
+            }
+            if (excluded != null) {
+                excluded.add(null);
+                return new Document(field, new Document("$nin", excluded));
+            }
+        }
+
+        return Filters.and(Filters.nor(query), Filters.ne(field, null));
+    }
+
+    /*
+     * Builds the query of a simple condition over the field path, which can be relative to an array
+     * item when the condition is part of an $elemMatch.
+     */
+    private static Bson buildSimpleQuery(CustomWrapperSchemaParameter[] schema,
+            CustomWrapperSimpleCondition simpleCondition, String field, Collation collation) {
+
+        CustomWrapperFieldExpression fieldExpression = (CustomWrapperFieldExpression) simpleCondition.getField();
+        String operator = simpleCondition.getOperator();
+        if (OPERATOR_ISNULL.equals(operator) || OPERATOR_ISNOTNULL.equals(operator)) {
+            return buildNullCondition(null, field, operator);
+        } else if (isExpressionCondition(simpleCondition)) {
+            return buildExpressionQuery(fieldExpression, operator, simpleCondition.getRightExpression()[0]);
+        }
+
+        final CustomWrapperExpression[] rightSide = simpleCondition.getRightExpression();
+        final Object rightSideValue;
+        if (OPERATOR_IN.equals(operator)) {
+            // If operator is an IN, we need to take care of all the specified values, and set them into a List
+            final List<Object> rightSideValues = new ArrayList<Object>();
+            for (int i = 0; i < rightSide.length; i++) {
+                rightSideValues.add(TypeUtils.toBsonValue(((CustomWrapperSimpleExpression)rightSide[i]).getValue()));
+            }
+            rightSideValue = rightSideValues;
+        } else {
+            // Otherwise, just get the first position of the array (there will be only one)
+            rightSideValue = TypeUtils.toBsonValue(((CustomWrapperSimpleExpression)rightSide[0]).getValue());
+        }
+
+        if (OPERATOR_CONTAINS.equals(operator)) {
+            return buildContainsQuery(field, String.valueOf(rightSideValue));
+        }
+
+        // The schema tells the SQL type of the field, which is used to convert the value into every BSON
+        // type the field may be stored as: TIMESTAMP fields can be BSON Dates or BSON Timestamps and
+        // VARCHAR fields can be strings or ObjectIds.
+        final CustomWrapperSchemaParameter parameter = findSchemaParameter(schema, fieldExpression);
+        if (parameter != null && parameter.getType() == Types.TIMESTAMP && isComparison(operator)) {
+            return buildTimestampCondition(field, operator, rightSideValue);
+        } else if (parameter != null && parameter.getType() == Types.VARCHAR && !MONGODB_ID_FIELD.equals(field)
+                && isObjectIdCandidate(operator, rightSideValue)) {
+            return buildObjectIdCondition(field, operator, rightSideValue);
+        } else if (collation != null && OPERATOR_LIKE.equals(operator) && !MONGODB_ID_FIELD.equals(field)) {
+            return buildCaseInsensitiveLike(field, (String) rightSideValue, collation);
+        }
+
+        Document query = new Document();
+        addCondition(query, field, operator, rightSideValue);
         return query;
     }
 
-   
+    /*
+     * Conditions over subfields of the same array item must be satisfied by the same item:
+     * 'items_ITEM.sku = x AND items_ITEM.qty > 5' means that one item has both that sku and that
+     * quantity. Independent conditions over 'items.sku' and 'items.qty' would be satisfied by two
+     * different items, so the conditions of an AND sharing an array are grouped in an $elemMatch:
+     *
+     *   { items: { $elemMatch: { sku: x, qty: { $gt: 5 } } } }
+     *
+     * Returns the $elemMatch of each array with two or more conditions, keyed by the array path.
+     */
+    private static Map<String, Bson> buildElemMatches(CustomWrapperSchemaParameter[] schema,
+            List<CustomWrapperCondition> conditions, Collation collation) {
+
+        Map<String, List<CustomWrapperSimpleCondition>> groups = new LinkedHashMap<String, List<CustomWrapperSimpleCondition>>();
+        for (CustomWrapperCondition condition : conditions) {
+            String arrayPrefix = getArrayItemPrefix(condition);
+            if (arrayPrefix != null) {
+                List<CustomWrapperSimpleCondition> group = groups.get(arrayPrefix);
+                if (group == null) {
+                    group = new ArrayList<CustomWrapperSimpleCondition>();
+                    groups.put(arrayPrefix, group);
+                }
+                group.add((CustomWrapperSimpleCondition) condition);
+            }
+        }
+
+        Map<String, Bson> elemMatches = new HashMap<String, Bson>();
+        for (Map.Entry<String, List<CustomWrapperSimpleCondition>> group : groups.entrySet()) {
+            if (group.getValue().size() > 1) {
+                Bson elemMatch = buildElemMatch(schema, group.getKey(), group.getValue(), collation);
+                if (elemMatch != null) {
+                    elemMatches.put(group.getKey(), elemMatch);
+                }
+            }
+        }
+
+        return elemMatches;
+    }
+
+    /*
+     * Whether the right side of the condition is a field or a function instead of a literal.
+     */
+    private static boolean isExpressionCondition(CustomWrapperSimpleCondition condition) {
+
+        CustomWrapperExpression[] rightSide = condition.getRightExpression();
+        return rightSide != null && rightSide.length == 1 && !(rightSide[0] instanceof CustomWrapperSimpleExpression);
+    }
+
+    /*
+     * Conditions whose right side is a field or a function ('shipped_date > order_date',
+     * 'total < price * qty') compare two values of the same document, which a query can only do with
+     * an aggregation expression:
+     *
+     *   { $expr: { $lt: [ "$total", { $multiply: [ "$price", "$qty" ] } ] } }
+     *
+     * Aggregation expressions consider null and missing values lower than any other value, instead of
+     * unknown, so the condition also requires every field to be not null. Those conditions can use
+     * indexes, which $expr comparisons between fields cannot.
+     */
+    private static Bson buildExpressionQuery(CustomWrapperFieldExpression field, String operator,
+            CustomWrapperExpression rightSide) {
+
+        String expressionOperator = MONGODB_EXPRESSION_OPERATORS.get(operator);
+        if (expressionOperator == null) {
+            throw new IllegalArgumentException("Operator '" + operator
+                + "' cannot be delegated with a field or a function on its right side");
+        }
+
+        Set<String> fields = new LinkedHashSet<String>();
+        Object left = buildAggregationExpression(field, fields);
+        Object right = buildAggregationExpression(rightSide, fields);
+
+        List<Bson> filters = new ArrayList<Bson>();
+        filters.add(Filters.expr(new Document(expressionOperator, Arrays.asList(left, right))));
+        for (String f : fields) {
+            filters.add(Filters.ne(f, null));
+        }
+        return Filters.and(filters);
+    }
+
+    private static Object buildAggregationExpression(CustomWrapperExpression expression, Set<String> fields) {
+
+        if (expression instanceof CustomWrapperFieldExpression) {
+            CustomWrapperFieldExpression fieldExpression = (CustomWrapperFieldExpression) expression;
+            for (String name : getFieldNames(fieldExpression)) {
+                if (name.endsWith(SchemaBuilder.ARRAY_ITEM_SUFFIX)) {
+                    // "$array.field" is the array of the values of all the items, not the value of one item
+                    throw new IllegalArgumentException("Array items cannot be compared with other fields: "
+                        + buildLeftOperand(fieldExpression));
+                }
+            }
+            String field = buildLeftOperand(fieldExpression);
+            fields.add(field);
+            return "$" + field;
+
+        } else if (expression instanceof CustomWrapperSimpleExpression) {
+            Object value = TypeUtils.toBsonValue(((CustomWrapperSimpleExpression) expression).getValue());
+            // strings starting with '$' would be field paths
+            return (value instanceof String && ((String) value).startsWith("$")) ? new Document("$literal", value) : value;
+
+        } else if (expression instanceof CustomWrapperFunctionExpression) {
+            CustomWrapperFunctionExpression function = (CustomWrapperFunctionExpression) expression;
+            String operator = MONGODB_FUNCTIONS.get(function.getName().toUpperCase(Locale.ENGLISH));
+            if (operator == null) {
+                throw new IllegalArgumentException("Function '" + function.getName() + "' cannot be delegated. "
+                    + "Supported functions are: " + MONGODB_FUNCTIONS.keySet());
+            }
+            List<Object> parameters = new ArrayList<Object>();
+            for (CustomWrapperExpression parameter : function.getParameters()) {
+                parameters.add(buildAggregationExpression(parameter, fields));
+            }
+            return new Document(operator, parameters);
+        }
+
+        throw new IllegalArgumentException("Expression '" + expression + "' cannot be delegated");
+    }
+
+    /*
+     * Items that are subdocuments are matched with a query over their fields. Items that are not subdocuments
+     * can only be matched with operator expressions ({ $elemMatch: { $gt: 5, $lt: 10 } }), so the conditions are
+     * not grouped when they cannot be expressed that way. Null is returned in that case.
+     */
+    private static Bson buildElemMatch(CustomWrapperSchemaParameter[] schema, String arrayPrefix,
+            List<CustomWrapperSimpleCondition> conditions, Collation collation) {
+
+        List<Bson> itemQueries = new ArrayList<Bson>();
+        Document itemOperators = new Document();
+        for (CustomWrapperSimpleCondition condition : conditions) {
+            String itemField = getArrayItemField((CustomWrapperFieldExpression) condition.getField());
+            Bson itemQuery = buildSimpleQuery(schema, condition, itemField, collation);
+            if (!itemField.isEmpty()) {
+                itemQueries.add(itemQuery);
+            } else if (!mergeItemOperators(itemOperators, itemQuery)) {
+                return null;
+            }
+        }
+
+        if (itemQueries.isEmpty()) {
+            return new Document(arrayPrefix, new Document("$elemMatch", itemOperators));
+        } else if (itemOperators.isEmpty()) {
+            return Filters.elemMatch(arrayPrefix, Filters.and(itemQueries));
+        }
+        // Items are compared both as subdocuments and as values, they cannot be in the same array
+        return null;
+    }
+
+    private static boolean mergeItemOperators(Document itemOperators, Bson itemQuery) {
+
+        if (!(itemQuery instanceof Document) || ((Document) itemQuery).size() != 1) {
+            return false;
+        }
+
+        Object condition = ((Document) itemQuery).get("");
+        Document operators = (condition instanceof Document) ? (Document) condition : new Document("$eq", condition);
+        for (Map.Entry<String, Object> operator : operators.entrySet()) {
+            if (!operator.getKey().startsWith("$") || itemOperators.containsKey(operator.getKey())) {
+                return false;
+            }
+            itemOperators.append(operator.getKey(), operator.getValue());
+        }
+        return true;
+    }
+
+    /*
+     * Path of the array whose item is the first one referenced by the field of a simple condition,
+     * or null if the condition does not reference array items.
+     * For example: 'memos.memos_ITEM.by' -> 'memos'
+     */
+    private static String getArrayItemPrefix(CustomWrapperCondition condition) {
+
+        if (!condition.isSimpleCondition()
+                || OPERATOR_CONTAINS.equals(((CustomWrapperSimpleCondition) condition).getOperator())
+                || isExpressionCondition((CustomWrapperSimpleCondition) condition)) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String name : getFieldNames((CustomWrapperFieldExpression) ((CustomWrapperSimpleCondition) condition).getField())) {
+            if (name.endsWith(SchemaBuilder.ARRAY_ITEM_SUFFIX)) {
+                return sb.toString();
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(name);
+        }
+
+        return null;
+    }
+
+    /*
+     * Path of the field relative to the first array item it references, empty when it is the item itself.
+     * For example: 'memos.memos_ITEM.by' -> 'by'
+     */
+    private static String getArrayItemField(CustomWrapperFieldExpression field) {
+
+        List<String> names = getFieldNames(field);
+        int index = 0;
+        while (!names.get(index).endsWith(SchemaBuilder.ARRAY_ITEM_SUFFIX)) {
+            index++;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String name : names.subList(index + 1, names.size())) {
+            if (!name.endsWith(SchemaBuilder.ARRAY_ITEM_SUFFIX)) {
+                if (sb.length() > 0) {
+                    sb.append('.');
+                }
+                sb.append(name);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static List<String> getFieldNames(CustomWrapperFieldExpression field) {
+
+        List<String> names = new ArrayList<String>();
+        names.add(field.getName());
+        for (CustomWrapperFieldExpression subField : field.getSubFields()) {
+            names.add(subField.getName());
+        }
+        return names;
+    }
+
     public static Bson buildOrderBy(Collection<CustomWrapperOrderByExpression> sortFields) {
+        return buildOrderBy(sortFields, null, false);
+    }
+
+    /*
+     * The text score field is sorted by its $meta value, always in descending order. Without a $text search
+     * the score of every document is null, so the field does not change the order and it is not sorted.
+     */
+    public static Bson buildOrderBy(Collection<CustomWrapperOrderByExpression> sortFields, String textScoreField,
+            boolean textSearch) {
 
         if (sortFields == null || sortFields.isEmpty()) {
             return null;
@@ -199,14 +738,365 @@ public static Bson buildOrderBy(Collection<CustomWrapperOrderByExpression> sortF
         Map<String, Object> sortCriteria = new LinkedHashMap<String, Object>();
         for (CustomWrapperOrderByExpression sortField : sortFields) {
             String field = sortField.getField().getName();
-            Integer order = MONGODB_ORDERS.get(sortField.getOrder());
-            sortCriteria.put(field, order);
+            if (field.equals(textScoreField)) {
+                if (sortField.getOrder() != ORDER.DESC) {
+                    throw new IllegalArgumentException("Text score can only be sorted in descending order");
+                }
+                if (textSearch) {
+                    sortCriteria.put(field, new Document("$meta", "textScore"));
+                }
+            } else {
+                Integer order = MONGODB_ORDERS.get(sortField.getOrder());
+                sortCriteria.put(field, order);
+            }
         }
 
-        return new Document(sortCriteria);
+        return sortCriteria.isEmpty() ? null : new Document(sortCriteria);
 
     }
 
+    /**
+     * Builds a geospatial query over a field with GeoJSON objects:
+     *
+     *   WITHIN     -> $geoWithin: documents whose geometry is inside the given Polygon or MultiPolygon
+     *   INTERSECTS -> $geoIntersects: documents whose geometry intersects the given geometry
+     *   NEAR       -> $nearSphere: documents between the minimum and maximum distance (meters) of the
+     *                 given Point, nearest first
+     *
+     * Distances are only allowed with NEAR. Queries are served by a 2dsphere index on the field, which
+     * $nearSphere requires.
+     */
+    public static Bson buildGeoQuery(String field, String predicate, String geometryJson,
+            Integer minDistance, Integer maxDistance) {
+
+        if (field == null || geometryJson == null) {
+            throw new IllegalArgumentException("Geo predicates require a field and a GeoJSON geometry");
+        }
+
+        Document geometry = Document.parse(geometryJson);
+        String geometryType = geometry.getString("type");
+        if (geometryType == null) {
+            throw new IllegalArgumentException("GeoJSON geometry without type: " + geometryJson);
+        }
+
+        Document operator;
+        if (GEO_NEAR.equalsIgnoreCase(predicate)) {
+            if (!"Point".equals(geometryType)) {
+                throw new IllegalArgumentException("NEAR requires a GeoJSON Point");
+            }
+            operator = new Document("$geometry", geometry);
+            if (minDistance != null) {
+                operator.append("$minDistance", minDistance);
+            }
+            if (maxDistance != null) {
+                operator.append("$maxDistance", maxDistance);
+            }
+            return new Document(field, new Document("$nearSphere", operator));
+        }
+
+        if (minDistance != null || maxDistance != null) {
+            throw new IllegalArgumentException("Distances can only be used with NEAR");
+        }
+        if (GEO_WITHIN.equalsIgnoreCase(predicate)) {
+            if (!"Polygon".equals(geometryType) && !"MultiPolygon".equals(geometryType)) {
+                throw new IllegalArgumentException("WITHIN requires a GeoJSON Polygon or MultiPolygon");
+            }
+            return new Document(field, new Document("$geoWithin", new Document("$geometry", geometry)));
+        } else if (GEO_INTERSECTS.equalsIgnoreCase(predicate)) {
+            return new Document(field, new Document("$geoIntersects", new Document("$geometry", geometry)));
+        }
+
+        throw new IllegalArgumentException("Unknown geo predicate '" + predicate + "'. Valid values are "
+            + GEO_WITHIN + ", " + GEO_INTERSECTS + " and " + GEO_NEAR);
+    }
+
+    /**
+     * The CONTAINS condition that can be delegated as a $text search, or null if there is none. A query can
+     * only have one $text search, and only at the top level of the query, so there must be a single
+     * CONTAINS condition and it must be one of the conditions of the AND. Its field must also be the only
+     * field of the text index of the collection, see {@link #isTextIndexed(CustomWrapperSimpleCondition, Set)}.
+     *
+     * Any other CONTAINS condition is matched on its own field, see {@link #buildContainsQuery(String, String)}.
+     */
+    public static CustomWrapperSimpleCondition getTextSearchCondition(List<CustomWrapperCondition> conditions) {
+
+        CustomWrapperSimpleCondition textSearchCondition = null;
+        int containsConditions = 0;
+        for (CustomWrapperCondition condition : conditions) {
+            containsConditions += countContainsConditions(condition);
+            if (condition.isSimpleCondition()
+                    && OPERATOR_CONTAINS.equals(((CustomWrapperSimpleCondition) condition).getOperator())) {
+                textSearchCondition = (CustomWrapperSimpleCondition) condition;
+            }
+        }
+
+        return (containsConditions == 1) ? textSearchCondition : null;
+    }
+
+    /**
+     * Whether the text index covers exactly the field of the condition, given the fields of the index (a
+     * collection has one text index at most). $text searches every field of the index, so an index with
+     * other fields, or a wildcard one ("$**"), would also match documents where only those fields contain
+     * the terms.
+     *
+     * A $text search tokenizes the field into words and stems them with the language of the index, and it
+     * ignores stop words, so "cups" matches "cup" and a term never matches part of a word. This differs from
+     * the regular expressions used otherwise, see {@link #buildContainsQuery(String, String)}.
+     */
+    public static boolean isTextIndexed(CustomWrapperSimpleCondition condition, Set<String> textIndexFields) {
+
+        String field = buildLeftOperand((CustomWrapperFieldExpression) condition.getField());
+        return textIndexFields.size() == 1 && textIndexFields.contains(field);
+    }
+
+    private static int countContainsConditions(CustomWrapperCondition vdpCondition) {
+
+        if (vdpCondition.isAndCondition() || vdpCondition.isOrCondition()) {
+            List<CustomWrapperCondition> conditions = vdpCondition.isAndCondition()
+                ? ((CustomWrapperAndCondition) vdpCondition).getConditions()
+                : ((CustomWrapperOrCondition) vdpCondition).getConditions();
+            int count = 0;
+            for (CustomWrapperCondition condition : conditions) {
+                count += countContainsConditions(condition);
+            }
+            return count;
+        } else if (vdpCondition.isNotCondition()) {
+            return countContainsConditions(((CustomWrapperNotCondition) vdpCondition).getCondition());
+        }
+
+        return OPERATOR_CONTAINS.equals(((CustomWrapperSimpleCondition) vdpCondition).getOperator()) ? 1 : 0;
+    }
+
+    /*
+     * The value is a MongoDB search string: terms, "quoted phrases" and -negated terms.
+     */
+    private static Bson buildTextSearch(Object value) {
+        return Filters.text(String.valueOf(value));
+    }
+
+    /*
+     * A CONTAINS condition that is not a $text search is matched on its field with case insensitive regular
+     * expressions, following the syntax of the search strings of $text: the field contains every
+     * "quoted phrase", none of the -negated terms and, if there are any other terms, at least one of them.
+     * Unlike $text, words are not stemmed and stop words are not ignored.
+     */
+    private static Bson buildContainsQuery(String field, String searchString) {
+
+        List<Bson> queries = new ArrayList<Bson>();
+        List<String> terms = new ArrayList<String>();
+        List<String> negatedTerms = new ArrayList<String>();
+        Matcher matcher = SEARCH_TOKEN.matcher(searchString);
+        while (matcher.find()) {
+            if (matcher.group(1) != null) {
+                if (!matcher.group(1).trim().isEmpty()) {
+                    queries.add(Filters.regex(field, buildWordsPattern(Collections.singletonList(matcher.group(1).trim())), "i"));
+                }
+            } else if (matcher.group(2).startsWith("-") && matcher.group(2).length() > 1) {
+                negatedTerms.add(matcher.group(2).substring(1));
+            } else {
+                terms.add(matcher.group(2));
+            }
+        }
+        if (!terms.isEmpty()) {
+            queries.add(Filters.regex(field, buildWordsPattern(terms), "i"));
+        }
+        if (queries.isEmpty()) {
+            // Null values never contain anything
+            queries.add(Filters.ne(field, null));
+        }
+        if (!negatedTerms.isEmpty()) {
+            queries.add(Filters.not(Filters.regex(field, buildWordsPattern(negatedTerms), "i")));
+        }
+
+        return (queries.size() == 1) ? queries.get(0) : Filters.and(queries);
+    }
+
+    /*
+     * Matches any of the words, which are not part of longer words.
+     */
+    private static String buildWordsPattern(List<String> words) {
+
+        StringBuilder pattern = new StringBuilder("(?<!\\w)(?:");
+        for (int i = 0; i < words.size(); i++) {
+            if (i > 0) {
+                pattern.append('|');
+            }
+            pattern.append(Pattern.quote(words.get(i)));
+        }
+        return pattern.append(")(?!\\w)").toString();
+    }
+
+    /*
+     * Finds the schema parameter of the field, following its subfields (array items included) through the
+     * subschemas. The schema is null outside run() executions.
+     */
+    private static CustomWrapperSchemaParameter findSchemaParameter(CustomWrapperSchemaParameter[] schema,
+            CustomWrapperFieldExpression field) {
+
+        List<CustomWrapperFieldExpression> fields = new ArrayList<CustomWrapperFieldExpression>();
+        fields.add(field);
+        fields.addAll(field.getSubFields());
+
+        CustomWrapperSchemaParameter[] currentSchema = schema;
+        CustomWrapperSchemaParameter parameter = null;
+        for (CustomWrapperFieldExpression f : fields) {
+            parameter = null;
+            if (currentSchema != null) {
+                for (CustomWrapperSchemaParameter p : currentSchema) {
+                    if (f.getName().equals(p.getName())) {
+                        parameter = p;
+                        break;
+                    }
+                }
+            }
+            if (parameter == null) {
+                return null;
+            }
+            currentSchema = parameter.getColumns();
+        }
+
+        return parameter;
+    }
+
+    private static boolean isComparison(String op) {
+        return OPERATOR_EQ.equals(op) || OPERATOR_NE.equals(op) || OPERATOR_LT.equals(op) || OPERATOR_LE.equals(op)
+            || OPERATOR_GT.equals(op) || OPERATOR_GE.equals(op) || OPERATOR_IN.equals(op);
+    }
+
+    /*
+     * BSON Dates (millisecond precision) and BSON Timestamps (second precision plus an increment) are both
+     * TIMESTAMP fields in VDP and a field can hold both types. MongoDB never compares values of different
+     * types, so the condition is the OR of one condition for each type.
+     *
+     * VDP sees a BSON Timestamp as its seconds with no milliseconds (see ResultUtils), so the bounds of the
+     * BSON Timestamp condition are the seconds rounded accordingly. The increment of every bound is 0, the
+     * lowest one, so all the increments of the same second are included or excluded together.
+     */
+    @SuppressWarnings("unchecked")
+    private static Bson buildTimestampCondition(String field, String op, Object value) {
+
+        if (OPERATOR_IN.equals(op)) {
+            List<Bson> alternatives = new ArrayList<Bson>();
+            for (Object item : (List<Object>) value) {
+                alternatives.add(buildTimestampCondition(field, OPERATOR_EQ, item));
+            }
+            return Filters.or(alternatives);
+        }
+
+        Document dateCondition = new Document();
+        addCondition(dateCondition, field, op, value);
+        if (!(value instanceof Date)) {
+            return dateCondition;
+        }
+
+        long millis = ((Date) value).getTime();
+        long floor = Math.floorDiv(millis, 1000L);
+        boolean exact = (Math.floorMod(millis, 1000L) == 0);
+        long ceil = exact ? floor : floor + 1;
+
+        Document timestampRange;
+        if (OPERATOR_LT.equals(op)) {
+            timestampRange = new Document("$lt", toTimestamp(ceil));
+        } else if (OPERATOR_LE.equals(op)) {
+            timestampRange = new Document("$lt", toTimestamp(floor + 1));
+        } else if (OPERATOR_GT.equals(op)) {
+            timestampRange = new Document("$gte", toTimestamp(floor + 1));
+        } else if (OPERATOR_GE.equals(op)) {
+            timestampRange = new Document("$gte", toTimestamp(ceil));
+        } else if (exact) {
+            // EQ or NE: all the BSON Timestamps of that second
+            timestampRange = new Document("$gte", toTimestamp(floor)).append("$lt", toTimestamp(floor + 1));
+        } else {
+            // A BSON Timestamp is never equal to a date with milliseconds
+            return dateCondition;
+        }
+
+        if (OPERATOR_NE.equals(op)) {
+            return Filters.and(dateCondition, new Document(field, new Document("$not", timestampRange)));
+        }
+        return Filters.or(dateCondition, new Document(field, timestampRange));
+    }
+
+    private static BsonTimestamp toTimestamp(long seconds) {
+        return new BsonTimestamp((int) seconds, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isObjectIdCandidate(String op, Object value) {
+
+        if (OPERATOR_IN.equals(op)) {
+            for (Object item : (List<Object>) value) {
+                if (item instanceof String && ObjectId.isValid((String) item)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        return (OPERATOR_EQ.equals(op) || OPERATOR_NE.equals(op)) && value instanceof String
+            && ObjectId.isValid((String) value);
+    }
+
+    /*
+     * ObjectIds are VARCHAR fields in VDP, so a string that is a valid ObjectId is compared both
+     * as a string and as an ObjectId.
+     */
+    @SuppressWarnings("unchecked")
+    private static Bson buildObjectIdCondition(String field, String op, Object value) {
+
+        List<Object> values = new ArrayList<Object>();
+        for (Object item : (value instanceof List) ? (List<Object>) value : Collections.singletonList(value)) {
+            values.add(item);
+            if (item instanceof String && ObjectId.isValid((String) item)) {
+                values.add(new ObjectId((String) item));
+            }
+        }
+
+        return new Document(field, new Document(OPERATOR_NE.equals(op) ? "$nin" : "$in", values));
+    }
+
+    /*
+     * $regex does not follow the collation of the query, so LIKE is matched with a case insensitive regex.
+     * Such a regex cannot use the bounds of an index, so a prefix pattern ('abc%') is also translated into a
+     * range over the prefix, which is compared using the collation and can be served by an index with the
+     * same collation. The upper bound is the prefix followed by U+FFFF, which has the highest primary weight
+     * in the collations of MongoDB (CLDR root collation) precisely for this kind of range.
+     *
+     * With strength 1 the range is the whole condition, as it ignores diacritics like equality comparisons
+     * do. With strength 2 the regex is kept to exclude prefixes that only differ in diacritics.
+     */
+    private static Bson buildCaseInsensitiveLike(String field, String pattern, Collation collation) {
+
+        Document regex = new Document("$regex", translateRegex(pattern)).append("$options", "i");
+        String prefix = getLikePrefix(pattern);
+        if (prefix == null) {
+            return new Document(field, regex);
+        }
+
+        Document range = new Document("$gte", prefix).append("$lte", prefix + COLLATION_MAX_CHAR);
+        if (collation.getStrength() != CollationStrength.PRIMARY) {
+            range.putAll(regex);
+        }
+        return new Document(field, range);
+    }
+
+    /*
+     * The fixed prefix of a pattern like 'abc%', or null if the pattern has any other wildcard.
+     */
+    private static String getLikePrefix(String pattern) {
+
+        int end = pattern.length();
+        while (end > 0 && pattern.startsWith(SQL_ZERO_MORE_CHAR, end - 1)) {
+            end--;
+        }
+        String prefix = pattern.substring(0, end);
+        if (end == pattern.length() || prefix.isEmpty() || prefix.contains(SQL_ZERO_MORE_CHAR)
+                || prefix.contains(SQL_SINGLE_CHAR)) {
+            return null;
+        }
+        return prefix;
+    }
+
     /* Removes the names of the elements arrays, they are not required in MongoDB queries.
      * For example: if 'memos' field contains an array that contains subdocuments with the field 'by':
      * VDP will query for 'memos.memos_ITEM.by' and MongoDB will query for 'memos.by'.
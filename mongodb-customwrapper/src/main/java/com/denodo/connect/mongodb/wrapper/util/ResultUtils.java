@@ -21,6 +21,7 @@
  */
 package com.denodo.connect.mongodb.wrapper.util;
 
+import java.math.BigDecimal;
 import java.sql.Types;
 import java.util.ArrayList;
 
@@ -29,6 +30,7 @@
 import org.apache.log4j.Logger;
 import org.bson.BsonTimestamp;
 import org.bson.Document;
+import org.bson.types.Decimal128;
 
 
 public final class ResultUtils {
@@ -73,6 +75,31 @@ private static CustomWrapperSchemaParameter findParameterInSchema(CustomWrapperS
         return null;
     }
 
+    private static Object widenNumber(Number value, int sqlType) {
+
+        switch (sqlType) {
+            case Types.BIGINT:
+                return (value instanceof Long) ? value : Long.valueOf(value.longValue());
+            case Types.DOUBLE:
+                return (value instanceof Double) ? value : Double.valueOf(value.doubleValue());
+            case Types.DECIMAL:
+                if (value instanceof Double || value instanceof Float) {
+                    final double doubleValue = value.doubleValue();
+                    // NaN and infinity have no DECIMAL representation
+                    return (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue))
+                        ? null : BigDecimal.valueOf(doubleValue);
+                }
+                return BigDecimal.valueOf(value.longValue());
+            default:
+                return value;
+        }
+    }
+
+    private static BigDecimal toBigDecimal(Decimal128 value) {
+        // NaN and infinity have no DECIMAL representation
+        return (value.isNaN() || value.isInfinite()) ? null : value.bigDecimalValue();
+    }
+
     private static Object doBuildResultColumnValue(Object value, CustomWrapperSchemaParameter schemaParam)
         throws CustomWrapperException {
         try {
@@ -129,6 +156,12 @@ private static Object doBuildResultColumnValue(Object value, CustomWrapperSchema
                     } else {
                         return null;
                     }
+
+                } else if (value instanceof Decimal128 && schemaParam.getType() == Types.DECIMAL) {
+                    return toBigDecimal((Decimal128) value);
+                } else if (value instanceof Number) {
+                    // Numeric columns may hold narrower values, as their type is the widest one found in the collection
+                    return widenNumber((Number) value, schemaParam.getType());
                 }
 
             }
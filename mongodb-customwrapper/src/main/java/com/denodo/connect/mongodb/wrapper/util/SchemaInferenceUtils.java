@@ -0,0 +1,163 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.mongodb.client.model.Aggregates;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+
+/**
+ * Builds the aggregation pipeline used to infer the schema of a collection at the server side.
+ *
+ * Instead of retrieving whole documents, the pipeline flattens every document into (path, BSON type)
+ * records and groups them, so only the distinct pairs are sent over the wire. A path is an array of
+ * segments: field names are strings and the items of an array are represented by the number 0.
+ * For example:
+ *
+ *   { "name": "a", "memos": [ { "by": "b" } ] }
+ *
+ * results in: ([_id], objectId), ([name], string), ([memos], array), ([memos, 0], object) and
+ * ([memos, 0, by], string).
+ *
+ * Aggregation expressions are not recursive, so subdocuments and arrays are expanded one level per set of
+ * stages, up to a maximum depth. Containers deeper than that are reported without their contents.
+ */
+public final class SchemaInferenceUtils {
+
+    public static final String PATH_FIELD = "p";
+    public static final String TYPE_FIELD = "t";
+    public static final Integer ARRAY_ITEM_SEGMENT = Integer.valueOf(0);
+
+    private static final String VALUE_FIELD = "v";
+    private static final String ENTRIES_FIELD = "e";
+    private static final String CHILDREN_FIELD = "c";
+
+    private static final String BSON_TYPE_OBJECT = "object";
+    private static final String BSON_TYPE_ARRAY = "array";
+
+
+    private SchemaInferenceUtils() {
+    }
+
+    /**
+     * The resulting documents have the form: { _id: { p: [path segments], t: "BSON type alias" } }
+     */
+    public static List<Bson> buildPipeline(Bson query, Integer sampleSize, Integer maxDocuments, int maxDepth) {
+        return buildPipeline(query, Collections.<Bson>emptyList(), sampleSize, maxDocuments, maxDepth);
+    }
+
+    /**
+     * Same as {@link #buildPipeline(Bson, Integer, Integer, int)} for the documents of a view defined by
+     * aggregation stages over the collection. The sample is taken before the view stages.
+     */
+    public static List<Bson> buildPipeline(Bson query, List<Bson> viewStages, Integer sampleSize,
+            Integer maxDocuments, int maxDepth) {
+
+        final List<Bson> pipeline = new ArrayList<Bson>();
+        // An empty query is not added before view stages, which may start with a $text search that must be
+        // the first stage
+        if (viewStages.isEmpty() || !(query instanceof Document) || !((Document) query).isEmpty()) {
+            pipeline.add(Aggregates.match(query));
+        }
+        if (sampleSize != null) {
+            pipeline.add(Aggregates.sample(sampleSize.intValue()));
+        }
+        pipeline.addAll(viewStages);
+        if (maxDocuments != null) {
+            pipeline.add(Aggregates.limit(maxDocuments.intValue()));
+        }
+
+        // One record { p: [field], v: value } per top level field
+        pipeline.add(new Document("$project", new Document("_id", Integer.valueOf(0))
+            .append(ENTRIES_FIELD, map(new Document("$objectToArray", "$$ROOT"),
+                Collections.singletonList("$$this.k"), "$$this.v"))));
+        pipeline.addAll(flatten());
+
+        for (int i = 0; i < maxDepth; i++) {
+            pipeline.addAll(expandLevel());
+        }
+
+        pipeline.add(new Document("$group", new Document("_id",
+            new Document(PATH_FIELD, "$" + PATH_FIELD).append(TYPE_FIELD, typeExpression()))));
+
+        return pipeline;
+    }
+
+    /*
+     * Records are either already typed { p, t } or pending { p, v }. Pending records get their type and, when
+     * their value is a subdocument or an array, emit one pending record for each of its entries.
+     */
+    private static List<Bson> expandLevel() {
+
+        final List<Object> subDocumentPath = Arrays.<Object>asList("$" + PATH_FIELD, Collections.singletonList("$$this.k"));
+        final List<Object> arrayItemPath = Arrays.<Object>asList("$" + PATH_FIELD, Collections.singletonList(ARRAY_ITEM_SEGMENT));
+
+        final Document valueType = new Document("$type", "$" + VALUE_FIELD);
+        final List<Document> branches = Arrays.asList(
+            new Document("case", new Document("$eq", Arrays.asList(valueType, BSON_TYPE_OBJECT)))
+                .append("then", map(new Document("$objectToArray", "$" + VALUE_FIELD),
+                    new Document("$concatArrays", subDocumentPath), "$$this.v")),
+            new Document("case", new Document("$eq", Arrays.asList(valueType, BSON_TYPE_ARRAY)))
+                .append("then", map("$" + VALUE_FIELD, new Document("$concatArrays", arrayItemPath), "$$this")));
+
+        final Document children = new Document("$switch",
+            new Document("branches", branches).append("default", Collections.emptyList()));
+
+        final List<Bson> stages = new ArrayList<Bson>();
+        stages.add(new Document("$project", new Document(PATH_FIELD, Integer.valueOf(1))
+            .append(TYPE_FIELD, typeExpression())
+            .append(CHILDREN_FIELD, children)));
+
+        final Document self = new Document(PATH_FIELD, "$" + PATH_FIELD).append(TYPE_FIELD, "$" + TYPE_FIELD);
+        stages.add(new Document("$project", new Document(ENTRIES_FIELD,
+            new Document("$concatArrays", Arrays.asList(Collections.singletonList(self), "$" + CHILDREN_FIELD)))));
+        stages.addAll(flatten());
+
+        return stages;
+    }
+
+    private static Document typeExpression() {
+        return new Document("$ifNull", Arrays.asList("$" + TYPE_FIELD, new Document("$type", "$" + VALUE_FIELD)));
+    }
+
+    private static Document map(Object input, Object path, Object value) {
+        return new Document("$map", new Document("input", input)
+            .append("in", new Document(PATH_FIELD, path).append(VALUE_FIELD, value)));
+    }
+
+    private static List<Bson> flatten() {
+        return Arrays.<Bson>asList(
+            Aggregates.unwind("$" + ENTRIES_FIELD),
+            new Document("$replaceRoot", new Document("newRoot", "$" + ENTRIES_FIELD)));
+    }
+
+    public static boolean isContainer(String bsonType) {
+        return BSON_TYPE_OBJECT.equals(bsonType) || BSON_TYPE_ARRAY.equals(bsonType);
+    }
+
+}
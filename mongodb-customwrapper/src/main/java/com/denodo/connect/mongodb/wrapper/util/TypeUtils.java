@@ -21,17 +21,32 @@
  */
 package com.denodo.connect.mongodb.wrapper.util;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
+import org.bson.BsonDbPointer;
+import org.bson.BsonRegularExpression;
 import org.bson.BsonTimestamp;
+import org.bson.BsonUndefined;
 import org.bson.Document;
 import org.bson.types.Binary;
 import org.bson.types.Code;
+import org.bson.types.CodeWithScope;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
 import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
 
 
 public final class TypeUtils {
@@ -39,6 +54,7 @@ public final class TypeUtils {
     private static final Logger logger = Logger.getLogger(TypeUtils.class);
 
     private static final Map<Class<?>, Integer> SQL_TYPES = getTypeMappings();
+    private static final Map<String, Class<?>> BSON_TYPES = getBsonTypeMappings();
 
     private TypeUtils() {
 
@@ -53,6 +69,9 @@ private static Map<Class<?>, Integer> getTypeMappings() {
         map.put(Boolean.class, Integer.valueOf(Types.BOOLEAN));
         map.put(Double.class, Integer.valueOf(Types.DOUBLE));
         map.put(Float.class, Integer.valueOf(Types.FLOAT));
+        map.put(Decimal128.class, Integer.valueOf(Types.DECIMAL));
+        // Fields that only hold null values are handled as text
+        map.put(Void.class, Integer.valueOf(Types.VARCHAR));
         map.put(ArrayList.class, Integer.valueOf(Types.ARRAY));
         map.put(Document.class, Integer.valueOf(Types.STRUCT));
         map.put(Binary.class, Integer.valueOf(Types.VARBINARY));
@@ -66,9 +85,9 @@ private static Map<Class<?>, Integer> getTypeMappings() {
          * an SQL DATE would be DATE+TIME, this will change in Denodo 7.0 and SQL DATE will
          * be a proper Date (no time) in VQL, so such thing would be a bad idea for the future.
          *
-         * This means that we will identify both MongoDB data types as the same in VDP, which will
-         * have as a consequence a limitation on WHERE clauses: no filters will be possible on
-         * MongoDB BSON TIMESTAMP fields. Also, no insertion of BSON TIMESTAMPS will be possible.
+         * This means that we will identify both MongoDB data types as the same in VDP. Filters on
+         * TIMESTAMP fields are translated into conditions that match both BSON types (see QueryUtils),
+         * but no insertion of BSON TIMESTAMPS will be possible.
          *
          * This should be no real issue as MongoDB BSON TIMESTAMP data is considered for internal MongoDN
          * use by the BSON specification: https://docs.mongodb.com/manual/reference/bson-types/#timestamps
@@ -82,6 +101,103 @@ private static Map<Class<?>, Integer> getTypeMappings() {
         return map;
     }
 
+    /*
+     * Mappings between the BSON type aliases returned by the $type aggregation operator and the classes
+     * used by the driver to decode them into a Document.
+     */
+    private static Map<String, Class<?>> getBsonTypeMappings() {
+
+        Map<String, Class<?>> map = new HashMap<String, Class<?>>();
+        map.put("double", Double.class);
+        map.put("string", String.class);
+        map.put("object", Document.class);
+        map.put("array", ArrayList.class);
+        map.put("binData", Binary.class);
+        map.put("undefined", BsonUndefined.class);
+        map.put("objectId", ObjectId.class);
+        map.put("bool", Boolean.class);
+        map.put("date", java.util.Date.class);
+        // Null values do not reveal any type
+        map.put("null", Void.class);
+        map.put("regex", BsonRegularExpression.class);
+        map.put("dbPointer", BsonDbPointer.class);
+        map.put("javascript", Code.class);
+        map.put("symbol", Symbol.class);
+        map.put("javascriptWithScope", CodeWithScope.class);
+        map.put("int", Integer.class);
+        map.put("timestamp", BsonTimestamp.class);
+        map.put("long", Long.class);
+        map.put("decimal", Decimal128.class);
+        map.put("minKey", MinKey.class);
+        map.put("maxKey", MaxKey.class);
+
+        return map;
+    }
+
+    /**
+     * Returns the class with that name among the classes the values of the documents can have, or null
+     * if it is not one of them.
+     */
+    public static Class<?> getSupportedClass(String className) {
+
+        for (Class<?> javaClass : SQL_TYPES.keySet()) {
+            if (javaClass.getName().equals(className)) {
+                return javaClass;
+            }
+        }
+        for (Class<?> javaClass : BSON_TYPES.values()) {
+            if (javaClass.getName().equals(className)) {
+                return javaClass;
+            }
+        }
+        return null;
+    }
+
+    public static Class<?> fromBsonType(String bsonType) {
+
+        Class<?> javaClass = BSON_TYPES.get(bsonType);
+        if (javaClass == null) {
+            logger.warn("BSON type '" + bsonType + "' is not supported. Returning String.class");
+            return String.class;
+        }
+
+        return javaClass;
+    }
+
+    /**
+     * Converts a value received from VDP into the value the driver has to encode so it
+     * is stored, or compared, as the equivalent BSON type:
+     *
+     * - BigDecimal and BigInteger values become Decimal128 (Long when the integer fits).
+     * - Float values become Double, as BSON has no single precision type.
+     * - java.sql dates and timestamps, as well as java.time instants and date-times, become
+     *   java.util.Date (BSON Date). Local date-times are considered UTC, as the driver does.
+     */
+    public static Object toBsonValue(Object value) {
+
+        if (value instanceof BigDecimal) {
+            return new Decimal128((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            final BigInteger integer = (BigInteger) value;
+            return (integer.bitLength() < Long.SIZE) ? (Object) Long.valueOf(integer.longValue()) : new Decimal128(new BigDecimal(integer));
+        } else if (value instanceof Float) {
+            return Double.valueOf(((Float) value).doubleValue());
+        } else if (value instanceof java.util.Date && !java.util.Date.class.equals(value.getClass())) {
+            // The driver only has a codec for java.util.Date itself
+            return new java.util.Date(((java.util.Date) value).getTime());
+        } else if (value instanceof Instant) {
+            return java.util.Date.from((Instant) value);
+        } else if (value instanceof OffsetDateTime) {
+            return java.util.Date.from(((OffsetDateTime) value).toInstant());
+        } else if (value instanceof ZonedDateTime) {
+            return java.util.Date.from(((ZonedDateTime) value).toInstant());
+        } else if (value instanceof LocalDateTime) {
+            return java.util.Date.from(((LocalDateTime) value).toInstant(ZoneOffset.UTC));
+        }
+
+        return value;
+    }
+
     public static int toSQL(Class<?> javaClass) {
 
         Integer sqlType = SQL_TYPES.get(javaClass);
@@ -0,0 +1,110 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class MemoryGuardTest {
+
+
+    @Test
+    public void testTruncateArrays() {
+
+        final MemoryGuard guard = new MemoryGuard(2, 0, 0, MemoryGuard.Policy.TRUNCATE, new DocumentCodec());
+
+        final Document document = guard.check(Document.parse("{ _id: 1, tags: [ 'a', 'b', 'c' ], "
+            + "items: [ { ids: [ 1, 2, 3, 4 ] } ] }"));
+
+        Assert.assertEquals(Arrays.asList("a", "b"), document.get("tags"));
+        Assert.assertEquals(Arrays.asList(1, 2), document.getList("items", Document.class).get(0).get("ids"));
+        Assert.assertEquals(1, guard.getTruncatedDocuments());
+
+        guard.check(Document.parse("{ _id: 2, tags: [ 'a' ] }"));
+        Assert.assertEquals(1, guard.getTruncatedDocuments());
+    }
+
+    @Test
+    public void testTruncateLargestFields() {
+
+        final MemoryGuard guard = new MemoryGuard(0, 100, 0, MemoryGuard.Policy.TRUNCATE, new DocumentCodec());
+
+        final char[] large = new char[200];
+        Arrays.fill(large, 'x');
+        final Document document = guard.check(new Document("_id", 1).append("name", "small").append("text", new String(large)));
+
+        Assert.assertEquals("small", document.get("name"));
+        Assert.assertFalse(document.containsKey("text"));
+        Assert.assertEquals(1, guard.getTruncatedDocuments());
+    }
+
+    @Test
+    public void testSkip() {
+
+        final MemoryGuard guard = new MemoryGuard(2, 0, 0, MemoryGuard.Policy.SKIP, new DocumentCodec());
+
+        Assert.assertNull(guard.check(Document.parse("{ _id: 1, tags: [ 'a', 'b', 'c' ] }")));
+        Assert.assertNotNull(guard.check(Document.parse("{ _id: 2, tags: [ 'a', 'b' ] }")));
+        Assert.assertEquals(1, guard.getSkippedDocuments());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFail() {
+
+        final MemoryGuard guard = new MemoryGuard(2, 0, 0, MemoryGuard.Policy.FAIL, new DocumentCodec());
+        guard.check(Document.parse("{ _id: 1, tags: [ 'a', 'b', 'c' ] }"));
+    }
+
+    @Test
+    public void testResultLimit() {
+
+        final MemoryGuard guard = new MemoryGuard(0, 0, 50, MemoryGuard.Policy.SKIP, new DocumentCodec());
+
+        Assert.assertNotNull(guard.check(Document.parse("{ _id: 1, name: 'first' }")));
+        try {
+            guard.check(Document.parse("{ _id: 2, name: 'second' }"));
+            Assert.fail("A partial result must not be returned");
+        } catch (final IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("50 bytes"));
+        }
+    }
+
+    @Test
+    public void testDecodedSize() {
+
+        final MemoryGuard guard = new MemoryGuard(0, 30, 0, MemoryGuard.Policy.SKIP, new DocumentCodec());
+
+        final Document document = new Document("_id", 1).append("name", "a name longer than the limit");
+        final RawBsonDocument raw = new RawBsonDocument(document, new DocumentCodec());
+        Assert.assertTrue(raw.getByteBuffer().remaining() > 30);
+
+        Assert.assertNull(guard.check(raw.decode(guard.getCodec())));
+        Assert.assertEquals(1, guard.getSkippedDocuments());
+    }
+
+}
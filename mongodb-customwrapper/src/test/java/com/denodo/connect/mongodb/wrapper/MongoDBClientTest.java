@@ -0,0 +1,47 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class MongoDBClientTest {
+
+
+    /*
+     * SELECT DISTINCT status, region: documents without region and documents with region null are
+     * the same group, as both are NULL for VDP
+     */
+    @Test
+    public void testDistinctGroupsMissingAndNullFields() {
+
+        final Document groupId = MongoDBClient.buildDistinctGroupId(Arrays.asList("status", "region"));
+
+        Assert.assertEquals(Document.parse("{ status: { $ifNull: [ '$status', null ] }, "
+            + "region: { $ifNull: [ '$region', null ] } }"), groupId);
+    }
+
+}
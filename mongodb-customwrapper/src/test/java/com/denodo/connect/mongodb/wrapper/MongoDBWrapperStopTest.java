@@ -0,0 +1,136 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+
+
+public class MongoDBWrapperStopTest {
+
+
+    @Test(timeout = 10000)
+    public void testStopClosesBlockedCursor() throws Exception {
+
+        final MongoDBWrapper wrapper = new MongoDBWrapper();
+        final SlowCursor cursor = new SlowCursor();
+        wrapper.setActiveCursor(cursor);
+
+        final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+        final Thread reader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    cursor.hasNext();
+                } catch (final RuntimeException e) {
+                    error.set(e);
+                }
+            }
+        });
+        reader.start();
+        Assert.assertTrue(cursor.waiting.await(5, TimeUnit.SECONDS));
+
+        Assert.assertTrue(wrapper.stop());
+        reader.join(5000);
+
+        Assert.assertFalse(reader.isAlive());
+        Assert.assertTrue(cursor.isClosed());
+        Assert.assertTrue(error.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testCursorOpenedAfterStopIsClosed() {
+
+        final MongoDBWrapper wrapper = new MongoDBWrapper();
+        wrapper.stop();
+
+        final SlowCursor cursor = new SlowCursor();
+        wrapper.setActiveCursor(cursor);
+
+        Assert.assertTrue(cursor.isClosed());
+    }
+
+    /*
+     * Stand-in for the cursor of a slow server: every getMore waits until the cursor is closed, as one that
+     * waits for the results of an expensive query.
+     */
+    private static final class SlowCursor implements MongoCursor<Document> {
+
+        final CountDownLatch waiting = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        boolean isClosed() {
+            return this.closed.getCount() == 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            this.waiting.countDown();
+            try {
+                this.closed.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("Cursor has been closed");
+        }
+
+        @Override
+        public Document next() {
+            hasNext();
+            return null;
+        }
+
+        @Override
+        public Document tryNext() {
+            hasNext();
+            return null;
+        }
+
+        @Override
+        public void close() {
+            this.closed.countDown();
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper.schema;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+
+
+public class SchemaBuilderTest {
+
+    /*
+     * Nested subdocuments and arrays of subdocuments whose fields and types differ across partitions:
+     * 'tags', 'extra' and 'address.geo' are only present in one of them.
+     */
+    private static final List<Document> FIRST_PARTITION = Arrays.asList(
+        Document.parse("{ _id: 1, name: 'a', address: { city: 'x', geo: { lat: 1.5 } }, tags: [ 'a', 'b' ], "
+            + "items: [ { sku: 's1', qty: 1 } ] }"));
+    private static final List<Document> SECOND_PARTITION = Arrays.asList(
+        Document.parse("{ _id: 2, name: 'b', address: { city: 'y', zip: 'z' }, items: [ { sku: 's2', price: 1.5 } ], "
+            + "extra: 5 }"),
+        Document.parse("{ _id: { $numberLong: '3' }, name: null, items: [ { qty: { $numberLong: '2' } } ] }"));
+    private static final List<Document> EMPTY_PARTITION = Collections.emptyList();
+
+
+    private static SchemaBuilder buildSequentially(List<List<Document>> partitions) {
+
+        SchemaBuilder builder = new SchemaBuilder();
+        for (List<Document> partition : partitions) {
+            for (Document document : partition) {
+                builder.addToSchema(document);
+            }
+        }
+        return builder;
+    }
+
+    private static SchemaBuilder buildInParallel(List<List<Document>> partitions) {
+
+        List<MongoIterable<Document>> cursors = new ArrayList<MongoIterable<Document>>();
+        for (List<Document> partition : partitions) {
+            cursors.add(iterable(partition));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(partitions.size());
+        try {
+            return pool.invoke(new SchemaBuilderTask(cursors, new AtomicLong(), Long.MAX_VALUE, Long.MAX_VALUE));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MongoIterable<Document> iterable(List<Document> documents) {
+
+        MongoIterable<Document> iterable = mock(MongoIterable.class);
+        when(iterable.iterator()).thenReturn(new ListCursor(documents.iterator()));
+        return iterable;
+    }
+
+    private static List<String> getFieldNames(DocumentType type) {
+
+        List<String> names = new ArrayList<String>();
+        for (Type field : type.getTypes()) {
+            names.add(field.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testParallelMergeEqualsSequential() {
+
+        List<List<Document>> partitions = Arrays.asList(FIRST_PARTITION, EMPTY_PARTITION, SECOND_PARTITION);
+
+        DocumentType sequential = buildSequentially(partitions).getType();
+        DocumentType parallel = buildInParallel(partitions).getType();
+
+        Assert.assertEquals(sequential, parallel);
+        Assert.assertEquals(getFieldNames(sequential), getFieldNames(parallel));
+        Assert.assertEquals(Arrays.asList("_id", "name", "address", "tags", "items", "extra"), getFieldNames(parallel));
+
+        Assert.assertEquals(Long.class, ((SimpleType) parallel.getType("_id")).getJavaClass());
+        Assert.assertEquals(String.class, ((SimpleType) parallel.getType("name")).getJavaClass());
+
+        DocumentType address = (DocumentType) parallel.getType("address");
+        Assert.assertEquals(Double.class, ((SimpleType) ((DocumentType) address.getType("geo")).getType("lat")).getJavaClass());
+        Assert.assertEquals(String.class, ((SimpleType) address.getType("zip")).getJavaClass());
+
+        DocumentType item = (DocumentType) ((ArrayType) parallel.getType("items")).getElementType();
+        Assert.assertEquals(String.class, ((SimpleType) item.getType("sku")).getJavaClass());
+        Assert.assertEquals(Long.class, ((SimpleType) item.getType("qty")).getJavaClass());
+        Assert.assertEquals(Double.class, ((SimpleType) item.getType("price")).getJavaClass());
+    }
+
+    @Test
+    public void testMergeWithEmptyPartitions() {
+
+        List<List<Document>> partitions = Arrays.asList(EMPTY_PARTITION, SECOND_PARTITION, EMPTY_PARTITION,
+            FIRST_PARTITION);
+
+        Assert.assertEquals(buildSequentially(partitions).getType(), buildInParallel(partitions).getType());
+
+        partitions = Arrays.asList(EMPTY_PARTITION, EMPTY_PARTITION);
+        Assert.assertTrue(buildInParallel(partitions).getType().getTypes().isEmpty());
+    }
+
+    /*
+     * Cursor over the documents of a partition.
+     */
+    private static final class ListCursor implements MongoCursor<Document> {
+
+        private final Iterator<Document> documents;
+
+        ListCursor(Iterator<Document> documents) {
+            this.documents = documents;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.documents.hasNext();
+        }
+
+        @Override
+        public Document next() {
+            return this.documents.next();
+        }
+
+        @Override
+        public Document tryNext() {
+            return this.documents.hasNext() ? this.documents.next() : null;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper.schema;
+
+import java.util.Date;
+
+import org.bson.BsonTimestamp;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class SimpleTypeTest {
+
+
+    private static Class<?> merge(Class<?>... classes) {
+
+        Type merged = null;
+        for (Class<?> javaClass : classes) {
+            Type type = (javaClass == null) ? SimpleType.undefined("field") : new SimpleType("field", javaClass);
+            merged = (merged == null) ? type : merged.merge(type);
+        }
+        return ((SimpleType) merged).getJavaClass();
+    }
+
+    @Test
+    public void testNumericWidening() {
+
+        Assert.assertEquals(Long.class, merge(Integer.class, Long.class));
+        Assert.assertEquals(Long.class, merge(Long.class, Integer.class));
+        Assert.assertEquals(Double.class, merge(Integer.class, Double.class));
+        Assert.assertEquals(Double.class, merge(Integer.class, Long.class, Double.class));
+        Assert.assertEquals(Decimal128.class, merge(Double.class, Decimal128.class, Integer.class));
+    }
+
+    @Test
+    public void testTemporalWidening() {
+
+        Assert.assertEquals(BsonTimestamp.class, merge(Date.class, BsonTimestamp.class));
+        Assert.assertEquals(BsonTimestamp.class, merge(BsonTimestamp.class, Date.class));
+    }
+
+    @Test
+    public void testIncompatibleTypes() {
+
+        Assert.assertEquals(String.class, merge(Integer.class, String.class));
+        Assert.assertEquals(String.class, merge(Date.class, Integer.class));
+        Assert.assertEquals(String.class, merge(ObjectId.class, Long.class, Double.class));
+        Assert.assertEquals(Object.class, merge(Object.class, Integer.class));
+    }
+
+    @Test
+    public void testUndefinedTypes() {
+
+        Assert.assertEquals(Integer.class, merge(null, Integer.class));
+        Assert.assertEquals(Long.class, merge(Integer.class, null, Long.class));
+        Assert.assertEquals(Void.class, merge(null, null));
+    }
+
+    /*
+     * The result of merging must not depend on the order of the types
+     */
+    @Test
+    public void testMergeIsOrderIndependent() {
+
+        Assert.assertEquals(merge(Integer.class, String.class, Double.class),
+            merge(Double.class, Integer.class, String.class));
+        Assert.assertEquals(merge(Date.class, Long.class, BsonTimestamp.class),
+            merge(Long.class, BsonTimestamp.class, Date.class));
+        Assert.assertEquals(merge(Object.class, Integer.class, String.class),
+            merge(String.class, Integer.class, Object.class));
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * =============================================================================
+ *
+ *   This software is part of the denodo developer toolkit.
+ *
+ *   Copyright (c) 2013, denodo technologies (http://www.denodo.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ * =============================================================================
+ */
+package com.denodo.connect.mongodb.wrapper.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class PipelineUtilsTest {
+
+
+    @Test
+    public void testChangedFields() {
+
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("total", "customer")),
+            PipelineUtils.getChangedFields(PipelineUtils.parsePipeline("[ { $match: { status: 'A' } }, "
+                + "{ $addFields: { 'total.amount': { $sum: '$items.price' } } }, "
+                + "{ $lookup: { from: 'customers', localField: 'cust_id', foreignField: '_id', as: 'customer' } } ]")));
+
+        Assert.assertNull(PipelineUtils.getChangedFields(PipelineUtils.parsePipeline(
+            "[ { $match: { status: 'A' } }, { $group: { _id: '$cust_id' } } ]")));
+        Assert.assertNull(PipelineUtils.getChangedFields(PipelineUtils.parsePipeline("[ { $limit: 10 } ]")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutputStagesNotAllowed() {
+        PipelineUtils.parsePipeline("[ { $match: { status: 'A' } }, { $out: 'copy' } ]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPipelineMustBeAnArray() {
+        PipelineUtils.parsePipeline("{ $match: { status: 'A' } }");
+    }
+
+}
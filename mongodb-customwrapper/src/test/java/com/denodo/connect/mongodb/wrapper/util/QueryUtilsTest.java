@@ -21,9 +21,12 @@
  */
 package com.denodo.connect.mongodb.wrapper.util;
 
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_CONTAINS;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_EQ;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_GE;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_GT;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_IN;
+import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_ISNULL;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_LE;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_LIKE;
 import static com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition.OPERATOR_LT;
@@ -33,11 +36,20 @@
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 
+import org.bson.BsonArray;
+import org.bson.BsonDateTime;
 import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -45,14 +57,19 @@
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import com.denodo.vdb.engine.customwrapper.CustomWrapperSchemaParameter;
 import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperAndCondition;
 import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperCondition;
+import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperNotCondition;
 import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperOrCondition;
 import com.denodo.vdb.engine.customwrapper.condition.CustomWrapperSimpleCondition;
+import com.denodo.vdb.engine.customwrapper.expression.CustomWrapperExpression;
 import com.denodo.vdb.engine.customwrapper.expression.CustomWrapperFieldExpression;
 import com.denodo.vdb.engine.customwrapper.expression.CustomWrapperSimpleExpression;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
 import com.mongodb.client.model.Filters;
 
 
@@ -61,7 +78,8 @@
  *
  */
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({CustomWrapperSimpleCondition.class, CustomWrapperAndCondition.class, CustomWrapperOrCondition.class})
+@PrepareForTest({CustomWrapperSimpleCondition.class, CustomWrapperAndCondition.class, CustomWrapperOrCondition.class,
+    CustomWrapperNotCondition.class})
 public class QueryUtilsTest {
 
 
@@ -127,6 +145,15 @@ private static CustomWrapperOrCondition buildORCondition(CustomWrapperCondition
         return orCondition;
     }
 
+    private static CustomWrapperNotCondition buildNOTCondition(CustomWrapperCondition condition) {
+
+        CustomWrapperNotCondition notCondition = PowerMockito.mock(CustomWrapperNotCondition.class);
+        when(notCondition.isNotCondition()).thenReturn(true);
+        when(notCondition.getCondition()).thenReturn(condition);
+
+        return notCondition;
+    }
+
     /*
      * VDP condition: WHERE status = "A"
      */
@@ -391,4 +418,354 @@ public void testIdField() {
         query = QueryUtils.buildQuery(null, simpleCondition);
     }
 
+    private static CustomWrapperSchemaParameter[] buildSchema(String fieldName, int sqlType) {
+        return new CustomWrapperSchemaParameter[] {
+            new CustomWrapperSchemaParameter(fieldName, sqlType, null, true,
+                CustomWrapperSchemaParameter.ASC_AND_DESC_SORT, true, true, false)
+        };
+    }
+
+    /*
+     * VDP condition: WHERE created >= '2020-01-01 00:00:00.500'
+     *                WHERE created = '2020-01-01 00:00:00'
+     * where created is a TIMESTAMP field, that can hold BSON Dates and BSON Timestamps
+     */
+    @Test
+    public void testTimestampConditionQuery() {
+
+        CustomWrapperSchemaParameter[] schema = buildSchema("created", Types.TIMESTAMP);
+        long seconds = 1577836800L;
+
+        CustomWrapperSimpleCondition simpleCondition = buildSimpleCondition("created", OPERATOR_GE, Types.TIMESTAMP,
+            new Date(seconds * 1000L + 500L));
+        BsonDocument bsonDocument = QueryUtils.buildQuery(schema, simpleCondition)
+            .toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        BsonArray alternatives = bsonDocument.getArray("$or");
+        Assert.assertEquals(new BsonDateTime(seconds * 1000L + 500L),
+            alternatives.get(0).asDocument().getDocument("created").get("$gte"));
+        Assert.assertEquals(new BsonTimestamp((int) seconds + 1, 0),
+            alternatives.get(1).asDocument().getDocument("created").get("$gte"));
+
+        simpleCondition = buildSimpleCondition("created", OPERATOR_EQ, Types.TIMESTAMP, new Date(seconds * 1000L));
+        bsonDocument = QueryUtils.buildQuery(schema, simpleCondition)
+            .toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        alternatives = bsonDocument.getArray("$or");
+        Assert.assertEquals(new BsonDateTime(seconds * 1000L), alternatives.get(0).asDocument().get("created"));
+        BsonDocument timestampRange = alternatives.get(1).asDocument().getDocument("created");
+        Assert.assertEquals(new BsonTimestamp((int) seconds, 0), timestampRange.get("$gte"));
+        Assert.assertEquals(new BsonTimestamp((int) seconds + 1, 0), timestampRange.get("$lt"));
+    }
+
+    /*
+     * VDP condition: WHERE customer = "508dec9f5a5c6fa3c8cde08b"
+     * where customer is a VARCHAR field, that can hold strings and ObjectIds
+     */
+    @Test
+    public void testObjectIdConditionQuery() {
+
+        CustomWrapperSchemaParameter[] schema = buildSchema("customer", Types.VARCHAR);
+
+        CustomWrapperSimpleCondition simpleCondition =
+            buildSimpleCondition("customer", OPERATOR_EQ, Types.VARCHAR, "508dec9f5a5c6fa3c8cde08b");
+        BsonDocument bsonDocument = QueryUtils.buildQuery(schema, simpleCondition)
+            .toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        BsonArray values = bsonDocument.getDocument("customer").getArray("$in");
+        Assert.assertEquals(new BsonString("508dec9f5a5c6fa3c8cde08b"), values.get(0));
+        Assert.assertEquals(new BsonObjectId(new ObjectId("508dec9f5a5c6fa3c8cde08b")), values.get(1));
+
+        simpleCondition = buildSimpleCondition("customer", OPERATOR_EQ, Types.VARCHAR, "A");
+        Document query = (Document) QueryUtils.buildQuery(schema, simpleCondition);
+        Assert.assertEquals("{\"customer\": \"A\"}", query.toJson());
+    }
+
+    /*
+     * VDP condition: WHERE items.items_ITEM.sku = "x" AND items.items_ITEM.qty > 5
+     *                WHERE sizes.sizes_ITEM > 5 AND sizes.sizes_ITEM < 10
+     */
+    @Test
+    public void testArrayItemConditionsQuery() {
+
+        CustomWrapperSimpleCondition firstCondition = buildSimpleConditionCompoundField(
+            "items", Arrays.asList("items_ITEM", "sku"), OPERATOR_EQ, Types.VARCHAR, "x");
+        CustomWrapperSimpleCondition secondCondition = buildSimpleConditionCompoundField(
+            "items", Arrays.asList("items_ITEM", "qty"), OPERATOR_GT, Types.NUMERIC, Integer.valueOf(5));
+
+        Bson query = QueryUtils.buildQuery(null, buildANDCondition(firstCondition, secondCondition));
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"items\":{\"$elemMatch\":{\"sku\":\"x\",\"qty\":{\"$gt\":5}}}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+
+        firstCondition = buildSimpleConditionCompoundField(
+            "sizes", Arrays.asList("sizes_ITEM"), OPERATOR_GT, Types.NUMERIC, Integer.valueOf(5));
+        secondCondition = buildSimpleConditionCompoundField(
+            "sizes", Arrays.asList("sizes_ITEM"), OPERATOR_LT, Types.NUMERIC, Integer.valueOf(10));
+
+        query = QueryUtils.buildQuery(null, buildANDCondition(firstCondition, secondCondition));
+        bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"sizes\":{\"$elemMatch\":{\"$gt\":5,\"$lt\":10}}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+    }
+
+    /*
+     * VDP condition: WHERE status NOT IN ("A", "B")
+     *                WHERE NOT (status = "A")
+     */
+    @Test
+    public void testNotInConditionQuery() {
+
+        CustomWrapperSimpleCondition simpleCondition = PowerMockito.mock(CustomWrapperSimpleCondition.class);
+        when(simpleCondition.isSimpleCondition()).thenReturn(true);
+        when(simpleCondition.getField()).thenReturn(new CustomWrapperFieldExpression("status"));
+        when(simpleCondition.getOperator()).thenReturn(OPERATOR_IN);
+        when(simpleCondition.getRightExpression()).thenReturn(new CustomWrapperSimpleExpression[] {
+            new CustomWrapperSimpleExpression(Types.VARCHAR, "A"), new CustomWrapperSimpleExpression(Types.VARCHAR, "B") });
+
+        Document query = (Document) QueryUtils.buildQuery(null, buildNOTCondition(simpleCondition));
+        Assert.assertEquals("{\"status\": {\"$nin\": [\"A\", \"B\", null]}}", query.toJson());
+
+        query = (Document) QueryUtils.buildQuery(null,
+            buildNOTCondition(buildSimpleCondition("status", OPERATOR_EQ, Types.VARCHAR, "A")));
+        Assert.assertEquals("{\"status\": {\"$nin\": [\"A\", null]}}", query.toJson());
+    }
+
+    /*
+     * VDP condition: WHERE name NOT LIKE "A%"
+     */
+    @Test
+    public void testNotLikeConditionQuery() {
+
+        CustomWrapperSimpleCondition simpleCondition =
+            buildSimpleCondition("name", OPERATOR_LIKE, Types.VARCHAR, "A%");
+
+        Bson query = QueryUtils.buildQuery(null, buildNOTCondition(simpleCondition));
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"$nor\":[{\"name\":{\"$regex\":\"^A.*$\"}}],\"name\":{\"$ne\":null}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+    }
+
+    /*
+     * VDP condition: WHERE NOT (age >= 18 AND age <= 65)   (age NOT BETWEEN 18 AND 65)
+     *                WHERE NOT (name IS NULL)
+     */
+    @Test
+    public void testNegatedCompoundConditionQuery() {
+
+        CustomWrapperSimpleCondition firstCondition =
+            buildSimpleCondition("age", OPERATOR_GE, Types.NUMERIC, Integer.valueOf(18));
+        CustomWrapperSimpleCondition secondCondition =
+            buildSimpleCondition("age", OPERATOR_LE, Types.NUMERIC, Integer.valueOf(65));
+
+        Bson query = QueryUtils.buildQuery(null, buildNOTCondition(buildANDCondition(firstCondition, secondCondition)));
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"$or\":["
+            + "{\"$nor\":[{\"age\":{\"$gte\":18}}],\"age\":{\"$ne\":null}},"
+            + "{\"$nor\":[{\"age\":{\"$lte\":65}}],\"age\":{\"$ne\":null}}]}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+
+        query = QueryUtils.buildQuery(null,
+            buildNOTCondition(buildSimpleCondition("name", OPERATOR_ISNULL, Types.VARCHAR, null)));
+        bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"name\":{\"$exists\":true,\"$ne\":null}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+    }
+
+    /*
+     * VDP condition: WHERE name LIKE 'Mon%'    (case-insensitive collation)
+     *                WHERE name LIKE '%go%'
+     */
+    @Test
+    public void testCaseInsensitiveLikeConditionQuery() {
+
+        Collation collation = Collation.builder().locale("en")
+            .collationStrength(CollationStrength.SECONDARY).build();
+
+        Bson query = QueryUtils.buildQuery(null,
+            buildSimpleCondition("name", OPERATOR_LIKE, Types.VARCHAR, "Mon%"), collation);
+        BsonDocument condition = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry())
+            .getDocument("name");
+        Assert.assertEquals("Mon", condition.getString("$gte").getValue());
+        Assert.assertEquals("Mon\uFFFF", condition.getString("$lte").getValue());
+        Assert.assertEquals("^Mon.*$", condition.getString("$regex").getValue());
+        Assert.assertEquals("i", condition.getString("$options").getValue());
+
+        collation = Collation.builder().locale("en").collationStrength(CollationStrength.PRIMARY).build();
+        query = QueryUtils.buildQuery(null,
+            buildSimpleCondition("name", OPERATOR_LIKE, Types.VARCHAR, "Mon%"), collation);
+        condition = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry())
+            .getDocument("name");
+        Assert.assertEquals(2, condition.size());
+
+        query = QueryUtils.buildQuery(null,
+            buildSimpleCondition("name", OPERATOR_LIKE, Types.VARCHAR, "%go%"), collation);
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"name\":{\"$regex\":\"^.*go.*$\",\"$options\":\"i\"}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+    }
+
+    /*
+     * VDP condition: WHERE description CONTAINS 'coffee mug' AND price < 10
+     * where description is in the text index of the collection
+     */
+    @Test
+    public void testContainsConditionQuery() {
+
+        CustomWrapperSimpleCondition firstCondition =
+            buildSimpleCondition("description", OPERATOR_CONTAINS, Types.VARCHAR, "coffee mug");
+        CustomWrapperSimpleCondition secondCondition =
+            buildSimpleCondition("price", OPERATOR_LT, Types.NUMERIC, Integer.valueOf(10));
+
+        List<CustomWrapperCondition> conditions = QueryUtils.getConjuncts(buildANDCondition(firstCondition, secondCondition));
+        CustomWrapperSimpleCondition textSearchCondition = QueryUtils.getTextSearchCondition(conditions);
+        Assert.assertSame(firstCondition, textSearchCondition);
+        Assert.assertTrue(QueryUtils.isTextIndexed(textSearchCondition, Collections.singleton("description")));
+        Assert.assertFalse(QueryUtils.isTextIndexed(textSearchCondition, Collections.singleton("$**")));
+        Assert.assertFalse(QueryUtils.isTextIndexed(textSearchCondition, new HashSet<String>(Arrays.asList("description", "name"))));
+        Assert.assertFalse(QueryUtils.isTextIndexed(textSearchCondition, Collections.singleton("name")));
+
+        Bson query = QueryUtils.buildQuery(null, conditions, textSearchCondition, null);
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"$text\":{\"$search\":\"coffeemug\"},\"price\":{\"$lt\":10}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+    }
+
+    /*
+     * VDP condition: WHERE description CONTAINS 'coffee mug' AND name CONTAINS '"big cup" -plastic'
+     * Only one $text search is allowed, so both are matched on their fields
+     */
+    @Test
+    public void testContainsConditionsOnFields() {
+
+        CustomWrapperSimpleCondition firstCondition =
+            buildSimpleCondition("description", OPERATOR_CONTAINS, Types.VARCHAR, "coffee mug");
+        CustomWrapperSimpleCondition secondCondition =
+            buildSimpleCondition("name", OPERATOR_CONTAINS, Types.VARCHAR, "\"big cup\" -plastic");
+
+        List<CustomWrapperCondition> conditions = QueryUtils.getConjuncts(buildANDCondition(firstCondition, secondCondition));
+        Assert.assertNull(QueryUtils.getTextSearchCondition(conditions));
+
+        Bson expected = Filters.regex("description", "(?<!\\w)(?:\\Qcoffee\\E|\\Qmug\\E)(?!\\w)", "i");
+        Assert.assertEquals(expected.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()),
+            QueryUtils.buildQuery(null, firstCondition).toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()));
+
+        expected = Filters.and(Filters.regex("name", "(?<!\\w)(?:\\Qbig cup\\E)(?!\\w)", "i"),
+            Filters.not(Filters.regex("name", "(?<!\\w)(?:\\Qplastic\\E)(?!\\w)", "i")));
+        Assert.assertEquals(expected.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()),
+            QueryUtils.buildQuery(null, secondCondition).toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()));
+    }
+
+    @Test
+    public void testGeoQuery() {
+
+        Bson query = QueryUtils.buildGeoQuery("location", QueryUtils.GEO_NEAR,
+            "{ type: 'Point', coordinates: [ -3.7, 40.4 ] }", null, Integer.valueOf(500));
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"location\":{\"$nearSphere\":{\"$geometry\":"
+            + "{\"type\":\"Point\",\"coordinates\":[-3.7,40.4]},\"$maxDistance\":500}}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+
+        query = QueryUtils.buildGeoQuery("location", QueryUtils.GEO_WITHIN,
+            "{ type: 'Polygon', coordinates: [ [ [0, 0], [0, 1], [1, 1], [0, 0] ] ] }", null, null);
+        bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"location\":{\"$geoWithin\":{\"$geometry\":"
+            + "{\"type\":\"Polygon\",\"coordinates\":[[[0,0],[0,1],[1,1],[0,0]]]}}}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGeoNearRequiresPoint() {
+        QueryUtils.buildGeoQuery("location", QueryUtils.GEO_NEAR,
+            "{ type: 'Polygon', coordinates: [ [ [0, 0], [0, 1], [1, 1], [0, 0] ] ] }", null, null);
+    }
+
+    /*
+     * VDP condition: WHERE shipped_date > order_date
+     *                WHERE NOT (shipped_date > order_date)
+     */
+    @Test
+    public void testFieldComparisonQuery() {
+
+        CustomWrapperSimpleCondition simpleCondition = PowerMockito.mock(CustomWrapperSimpleCondition.class);
+        when(simpleCondition.isSimpleCondition()).thenReturn(true);
+        when(simpleCondition.getField()).thenReturn(new CustomWrapperFieldExpression("shipped_date"));
+        when(simpleCondition.getOperator()).thenReturn(OPERATOR_GT);
+        when(simpleCondition.getRightExpression()).thenReturn(
+            new CustomWrapperExpression[] { new CustomWrapperFieldExpression("order_date") });
+
+        Bson query = QueryUtils.buildQuery(null, simpleCondition);
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"$expr\":{\"$gt\":[\"$shipped_date\",\"$order_date\"]},"
+            + "\"shipped_date\":{\"$ne\":null},\"order_date\":{\"$ne\":null}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+
+        query = QueryUtils.buildQuery(null, buildNOTCondition(simpleCondition));
+        bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"$expr\":{\"$lte\":[\"$shipped_date\",\"$order_date\"]},"
+            + "\"shipped_date\":{\"$ne\":null},\"order_date\":{\"$ne\":null}}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+    }
+
+    /*
+     * VDP condition: WHERE customer.name = 'Ann' AND status = 'A'
+     */
+    @Test
+    public void testConjunctsAndReferencedFields() {
+
+        CustomWrapperSimpleCondition firstCondition = buildSimpleConditionCompoundField("customer",
+            Arrays.asList("name"), OPERATOR_EQ, Types.VARCHAR, "Ann");
+        CustomWrapperSimpleCondition secondCondition = buildSimpleCondition("status", OPERATOR_EQ, Types.VARCHAR, "A");
+
+        List<CustomWrapperCondition> conjuncts = QueryUtils.getConjuncts(buildANDCondition(firstCondition, secondCondition));
+        Assert.assertEquals(2, conjuncts.size());
+        Assert.assertEquals(Collections.singleton("customer"), QueryUtils.getReferencedFields(conjuncts.get(0)));
+
+        Bson query = QueryUtils.buildQuery(null, conjuncts.subList(1, 2), null);
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"status\":\"A\"}", bsonDocument.toJson().replaceAll("\\s+", ""));
+    }
+
+    /*
+     * VDP condition: WHERE qty > 5 AND sku <> 'A1'   (over the unwound elements of 'items')
+     */
+    @Test
+    public void testUnwindQuery() {
+
+        CustomWrapperSimpleCondition firstCondition =
+            buildSimpleCondition("qty", OPERATOR_GT, Types.NUMERIC, Integer.valueOf(5));
+        CustomWrapperSimpleCondition secondCondition =
+            buildSimpleCondition("sku", OPERATOR_NE, Types.VARCHAR, "A1");
+
+        Bson query = QueryUtils.buildUnwindQuery(null,
+            Arrays.<CustomWrapperCondition>asList(firstCondition, secondCondition), "items",
+            Collections.<String>emptySet(), null);
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"$or\":[{\"qty\":{\"$gt\":5}},{\"items.qty\":{\"$gt\":5}}]}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+
+        Assert.assertNull(QueryUtils.buildUnwindQuery(null,
+            Arrays.<CustomWrapperCondition>asList(secondCondition), "items", Collections.<String>emptySet(), null));
+    }
+
+    /*
+     * VDP condition: WHERE customer.name = 'x' AND qty > 5   (over the unwound elements of 'items', after a
+     * lookup whose joined document is 'customer')
+     */
+    @Test
+    public void testUnwindQueryAfterLookup() {
+
+        CustomWrapperSimpleCondition firstCondition = buildSimpleConditionCompoundField("customer",
+            Arrays.asList("name"), OPERATOR_EQ, Types.VARCHAR, "x");
+        CustomWrapperSimpleCondition secondCondition =
+            buildSimpleCondition("qty", OPERATOR_GT, Types.NUMERIC, Integer.valueOf(5));
+
+        Bson query = QueryUtils.buildUnwindQuery(null,
+            Arrays.<CustomWrapperCondition>asList(firstCondition, secondCondition), "items",
+            Collections.singleton("customer"), null);
+        BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+        Assert.assertEquals("{\"$or\":[{\"qty\":{\"$gt\":5}},{\"items.qty\":{\"$gt\":5}}]}",
+            bsonDocument.toJson().replaceAll("\\s+", ""));
+
+        Assert.assertNull(QueryUtils.buildUnwindQuery(null,
+            Arrays.<CustomWrapperCondition>asList(firstCondition), "items", Collections.singleton("customer"), null));
+    }
+
 }